@@ -0,0 +1,90 @@
+package com.challenge.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.challenge.AtomicBitSet;
+import com.challenge.BatchDedup;
+import com.challenge.LocalBitSet;
+import com.challenge.NumberSet;
+
+/**
+ * Dedup of a block of random numbers as drained by a dedup thread, one operation is one number.
+ *
+ * element adds each number in the order received, as ProcessNumbers does by default.
+ * batch uses BatchDedup (option dedupbatch), partitioned by high bits and added in address order.
+ * Numbers are spread over all 10^9 values with 10% repeated within the block, so almost every add misses the cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx1g"})
+public class DedupBenchmark {
+
+    private static final int MaxValue = 999999999;
+    private static final int Block = 8192;
+    private static final int Keys = 1 << 20;
+
+    @Param({"element", "batch"})
+    public String mode;
+
+    @Param({"local", "atomic"})
+    public String set;
+
+    private NumberSet numberSet;
+    private BatchDedup batchDedup;
+    private int[] values;
+    private final int[] numbers = new int[Block];
+    private final int[] unique = new int[Block];
+    /** next block of values, and added to each value so each pass over them sets new bits */
+    private int next;
+    private int offset;
+
+    @Setup
+    public void setup() {
+        if ("local".equals(set)) numberSet = new LocalBitSet(MaxValue);
+        else numberSet = new AtomicBitSet(MaxValue);
+        batchDedup = new BatchDedup(numberSet, MaxValue, Block);
+
+        Random random = new Random(1);
+        values = new int[Keys];
+        for (int i=0; i<Keys; i++) {
+            int start = i & ~(Block - 1);
+            values[i] = (i > start && random.nextInt(10) == 0) ? values[start + random.nextInt(i - start)] : random.nextInt(MaxValue + 1);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    public int dedup() {
+        final int off = offset;
+        for (int i=0; i<Block; i++) numbers[i] = (values[next + i] + off) % (MaxValue + 1);
+        next += Block;
+        if (next == Keys) {
+            next = 0;
+            offset = (int) ((offset + 7919L * Keys) % (MaxValue + 1));
+        }
+        if (batchDedup != null && "batch".equals(mode)) return batchDedup.add(numbers, Block, 0, unique);
+        int cnt = 0;
+        for (int i=0; i<Block; i++) {
+            int x = numbers[i];
+            if (numberSet.add(x)) unique[cnt++] = x;
+        }
+        return cnt;
+    }
+}
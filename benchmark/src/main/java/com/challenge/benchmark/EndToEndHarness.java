@@ -0,0 +1,302 @@
+package com.challenge.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.challenge.FrameParser;
+import com.challenge.NumberLogSegments;
+import com.challenge.NumberParser;
+import com.challenge.ServerController;
+import com.challenge.SocketController;
+import com.challenge.Startup;
+
+/**
+ * End to end regression harness, that runs a ServerController in this process on a free port.
+ *
+ * Each client sends a known data set, generated from a seed with a ratio of duplicates, and then waits for the
+ * server to close the connection, so all of its data has been read.  The server is then stopped, and numbers.log
+ * (or all of its segments) is checked to contain exactly the unique numbers that were sent, each once.  A log
+ * written with log=gzip is decompressed.
+ *
+ * Fails with an exception if the log is not correct, or if the throughput is below the floor, so it can fail a build
+ * (see the e2e profile in pom.xml).  Options are name=value:
+ *     clients=n (default 5), numbers=n for each client (default 2000000), dup=ratio (default 0.1),
+ *     floor=numbers per second (default 0), binary to send frames instead of lines (see FrameParser),
+ *     ack to ask for acks and wait for the last ack to count all numbers before ending (fails if it does not),
+ *     and any server option for Startup, for example nio or dedup=2.
+ */
+public class EndToEndHarness {
+    private static Logger LOG = Logger.getLogger(EndToEndHarness.class.getName());
+
+    private static final int MaxValue = ServerController.MaxValue;
+    private static final int LineLength = ServerController.requiredDigits + 1;
+
+    private int clients = 5;
+    private int numbers = 2000000;
+    private double duplicateRatio = 0.1;
+    private long floor;
+    private boolean binary;
+    private boolean ack;
+    private final List<String> serverArgs = new ArrayList<>();
+
+    /** numbers sent by all clients, and the unique set of them */
+    private long cntSent;
+    private final BitSet bsExpected = new BitSet(MaxValue + 1);
+
+    public EndToEndHarness(String[] args) {
+        for (String arg : args) {
+            int ix = arg.indexOf('=');
+            String name = (ix < 0) ? arg.toLowerCase() : arg.substring(0, ix).toLowerCase();
+            String value = (ix < 0) ? null : arg.substring(ix+1);
+            if ("clients".equals(name)) clients = Integer.parseInt(value);
+            else if ("numbers".equals(name)) numbers = Integer.parseInt(value);
+            else if ("dup".equals(name)) duplicateRatio = Double.parseDouble(value);
+            else if ("floor".equals(name)) floor = Long.parseLong(value);
+            else if ("binary".equals(name)) binary = (value == null) || Boolean.parseBoolean(value);
+            else if ("ack".equals(name)) ack = (value == null) || Boolean.parseBoolean(value);
+            else serverArgs.add(arg);
+        }
+    }
+
+    /**
+     * Create the data set for one client, as the bytes to send.  Every number is added to the expected set.
+     * Binary data is the handshake line and frames of up to MaxFrameValues numbers.  The end marker (END or the
+     * end frame) is not included, see createEnd.
+     */
+    private byte[] createData(int id) {
+        SplittableRandom random = new SplittableRandom(id + 1);
+        int[] sent = new int[numbers];
+        for (int n=0; n<numbers; n++) {
+            int x = (n > 0 && random.nextDouble() < duplicateRatio) ? sent[random.nextInt(n)] : random.nextInt(MaxValue + 1);
+            sent[n] = x;
+            bsExpected.set(x);
+        }
+        cntSent += numbers;
+        if (binary) {
+            byte[] handshake = (FrameParser.Handshake+"\n").getBytes(StandardCharsets.US_ASCII);
+            int frames = (numbers + FrameParser.MaxFrameValues - 1) / FrameParser.MaxFrameValues;
+            ByteBuffer buffer = ByteBuffer.allocate(handshake.length + frames * 4 + numbers * 4);
+            buffer.put(handshake);
+            for (int n=0; n<numbers; n+=FrameParser.MaxFrameValues) {
+                int cnt = Math.min(FrameParser.MaxFrameValues, numbers - n);
+                buffer.putInt(cnt);
+                for (int i=0; i<cnt; i++) buffer.putInt(sent[n + i]);
+            }
+            return buffer.array();
+        }
+        byte[] data = new byte[numbers * LineLength];
+        for (int n=0; n<numbers; n++) {
+            int x = sent[n];
+            int off = n * LineLength;
+            for (int i=LineLength-2; i>=0; i--) {
+                data[off + i] = (byte) ('0' + (x % 10));
+                x /= 10;
+            }
+            data[off + LineLength - 1] = '\n';
+        }
+        return data;
+    }
+
+    /**
+     * @return bytes that end the input of a client, the server then closes the connection.
+     */
+    private byte[] createEnd() {
+        if (binary) return ByteBuffer.allocate(4).putInt(FrameParser.EndFrame).array();
+        return "END\n".getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Run the harness.
+     * @throws IllegalStateException if the log is not correct, or throughput is below the floor.
+     */
+    public void run() throws Exception {
+        final File dir = Files.createTempDirectory("challenge-e2e").toFile();
+        final byte[][] data = new byte[clients][];
+        for (int i=0; i<clients; i++) data[i] = createData(i);
+        LOG.info("clients="+clients+", numbers sent="+cntSent+", binary="+binary+", ack="+ack+", unique="+bsExpected.cardinality()+", server options="+serverArgs);
+
+        final ServerController sc = new ServerController();
+        sc.setLogFile(new File(dir, "numbers.log"));
+        sc.getServerSocketController().setPort(0);
+        new Startup(serverArgs.toArray(new String[0])) {
+            {
+                configure(sc);
+            }
+        };
+        sc.start();
+        final int port = sc.getServerSocketController().getLocalPort();
+
+        final CyclicBarrier barrier = new CyclicBarrier(clients + 1);
+        final CountDownLatch latch = new CountDownLatch(clients);
+        final AtomicReference<Exception> exception = new AtomicReference<>();
+        final AtomicLongArray acked = new AtomicLongArray(clients);
+        for (int i=0; i<clients; i++) {
+            final int id = i;
+            final byte[] bytes = data[i];
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (Socket socket = new Socket("localhost", port)) {
+                        barrier.await();
+                        OutputStream os = socket.getOutputStream();
+                        InputStream is = socket.getInputStream();
+                        if (ack) {
+                            os.write((SocketController.AckHandshake+"\n").getBytes(StandardCharsets.US_ASCII));
+                            Thread reader = readAcks(is, acked, id);
+                            os.write(bytes);
+                            os.flush();
+                            // all numbers must be acked, before the end marker is sent
+                            long msEnd = System.currentTimeMillis() + 60 * 1000;
+                            while (acked.get(id) >= 0 && acked.get(id) < numbers && System.currentTimeMillis() < msEnd) {
+                                Thread.sleep(1);
+                            }
+                            if (acked.get(id) != numbers) {
+                                throw new IllegalStateException("client "+id+" was acked "+acked.get(id)+" of "+numbers+" numbers");
+                            }
+                            os.write(createEnd());
+                            os.flush();
+                            reader.join();
+                        }
+                        else {
+                            os.write(bytes);
+                            os.write(createEnd());
+                            os.flush();
+                            // the server closes the connection after reading END (or the end frame), so all data has been read
+                            while (is.read() >= 0) {
+                            }
+                        }
+                    }
+                    catch (Exception e) {
+                        exception.compareAndSet(null, e);
+                    }
+                    finally {
+                        latch.countDown();
+                    }
+                }
+            }, "EndToEndHarness.Client."+i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        barrier.await();
+        final long nsStart = System.nanoTime();
+        latch.await();
+        final long nsRead = System.nanoTime() - nsStart;
+        if (exception.get() != null) throw new IllegalStateException("client failed", exception.get());
+        sc.stop();
+        final long nsTotal = System.nanoTime() - nsStart;
+
+        long rateRead = cntSent * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nsRead);
+        long rateTotal = cntSent * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nsTotal);
+        verify(new File(dir, "numbers.log"), sc.getLogSegments() > 0 || sc.getShards() > 1);
+        String s = String.format("numbers=%,d, read in %,dms (%,d numbers/s), logged in %,dms (%,d numbers/s), shutdown %,dms",
+            cntSent, TimeUnit.NANOSECONDS.toMillis(nsRead), rateRead, TimeUnit.NANOSECONDS.toMillis(nsTotal), rateTotal,
+            sc.getShutdownDrainMillis());
+        System.out.println(s);
+        deleteAll(dir);
+
+        if (rateTotal < floor) {
+            throw new IllegalStateException("throughput "+rateTotal+" numbers/s is below the floor of "+floor);
+        }
+    }
+
+    /**
+     * Start a thread that reads ack lines from the server until it closes the connection, each sets the ack count
+     * for the client.  Acks must be cumulative, a lower count is an error.
+     */
+    private Thread readAcks(final InputStream is, final AtomicLongArray acked, final int id) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.US_ASCII));
+                    for (String line; (line = reader.readLine()) != null; ) {
+                        if (!line.startsWith("ack ")) throw new IllegalStateException("invalid ack="+line);
+                        long cnt = Long.parseLong(line.substring(4));
+                        if (cnt < acked.get(id)) throw new IllegalStateException("ack went back from "+acked.get(id)+" to "+cnt);
+                        acked.set(id, cnt);
+                    }
+                }
+                catch (Exception e) {
+                    LOG.log(Level.WARNING, "exception while reading acks, client="+id, e);
+                    acked.set(id, -1);
+                }
+            }
+        }, "EndToEndHarness.Acks."+id);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Check the log holds each expected number exactly once, and nothing else.
+     */
+    private void verify(File fileLog, boolean bSegments) throws IOException {
+        final BitSet bsSeen = new BitSet(MaxValue + 1);
+        final long[] counts = new long[3];
+        NumberParser parser = new NumberParser(ServerController.requiredDigits, LineLength) {
+            @Override
+            protected void onNumbers(int[] values, int count) {
+                for (int i=0; i<count; i++) {
+                    int x = values[i];
+                    counts[0]++;
+                    if (bsSeen.get(x)) counts[1]++;
+                    else if (!bsExpected.get(x)) counts[2]++;
+                    bsSeen.set(x);
+                }
+            }
+
+            @Override
+            protected void onLine(String text) {
+                throw new IllegalStateException("invalid line in log, text="+text);
+            }
+        };
+        if (bSegments) {
+            NumberLogSegments.read(NumberLogSegments.getManifest(fileLog), parser);
+        }
+        else if (NumberLogSegments.isGzip(fileLog)) {
+            NumberLogSegments.readGzip(fileLog, parser);
+        }
+        else {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(fileLog.toPath()));
+            parser.parse(buffer);
+        }
+        long expected = bsExpected.cardinality();
+        if (counts[0] != expected || counts[1] != 0 || counts[2] != 0) {
+            throw new IllegalStateException("log is not correct, expected "+expected+" unique numbers, log has "+counts[0]
+                +", duplicates="+counts[1]+", not sent="+counts[2]);
+        }
+        LOG.info("log is correct, "+expected+" unique numbers");
+    }
+
+    private static void deleteAll(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) deleteAll(f);
+        }
+        if (!file.delete()) LOG.log(Level.WARNING, "can not delete "+file);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new EndToEndHarness(args).run();
+    }
+}
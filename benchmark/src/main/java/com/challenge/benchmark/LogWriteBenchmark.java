@@ -0,0 +1,75 @@
+package com.challenge.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.challenge.ChannelNumberWriter;
+import com.challenge.GzipNumberWriter;
+import com.challenge.NumberWriter;
+import com.challenge.PrintNumberWriter;
+
+/**
+ * Writing unique numbers to numbers.log, one operation is one number.
+ * A new file is created in java.io.tmpdir for each iteration, and deleted after it.
+ * gzip is GzipNumberWriter with 2 compress threads, which holds writes back when compression can not keep up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogWriteBenchmark {
+
+    private static final int Batch = 1024;
+
+    @Param({"print", "channel", "gzip"})
+    public String writer;
+
+    private final int[] numbers = new int[Batch];
+    private File file;
+    private NumberWriter numberWriter;
+
+    @Setup(Level.Trial)
+    public void setupNumbers() {
+        Random random = new Random(1);
+        for (int i=0; i<Batch; i++) numbers[i] = random.nextInt(1000000000);
+    }
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        file = File.createTempFile("numbers", ".log");
+        if ("channel".equals(writer)) numberWriter = new ChannelNumberWriter(file, false, 9);
+        else if ("gzip".equals(writer)) numberWriter = new GzipNumberWriter(file, false, 9, 2);
+        else numberWriter = new PrintNumberWriter(file, false, 9);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        numberWriter.close();
+        file.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Batch)
+    public void write() throws IOException {
+        numberWriter.write(numbers, Batch);
+    }
+}
@@ -0,0 +1,116 @@
+package com.challenge.benchmark;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.challenge.AtomicBitSet;
+import com.challenge.LocalBitSet;
+import com.challenge.NumberSet;
+import com.challenge.PagedBitSet;
+
+/**
+ * Dedup set lookup and set, one operation is one number.
+ *
+ * random keys are spread over all 10^9 values, so almost every access misses the cache.
+ * clustered keys are runs of nearby values, as when a client sends numbers in sequence.
+ * paged is PagedBitSet, which starts empty and converts pages from arrays to bitmaps as they fill.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx1g"})
+public class NumberSetBenchmark {
+
+    private static final int MaxValue = 999999999;
+    private static final int Keys = 1 << 16;
+
+    @Param({"local", "atomic", "paged", "bitset"})
+    public String set;
+
+    @Param({"random", "clustered"})
+    public String keys;
+
+    private NumberSet numberSet;
+    private BitSet bitSet;
+    private int[] values;
+    /** added to each key for add, so each invocation sets new bits until the set fills up */
+    private int offset;
+
+    @Setup
+    public void setup() {
+        if ("local".equals(set)) numberSet = new LocalBitSet(MaxValue);
+        else if ("atomic".equals(set)) numberSet = new AtomicBitSet(MaxValue);
+        else if ("paged".equals(set)) numberSet = new PagedBitSet(MaxValue);
+        else bitSet = new BitSet(MaxValue + 1);
+
+        Random random = new Random(1);
+        values = new int[Keys];
+        int base = 0;
+        for (int i=0; i<Keys; i++) {
+            if ("random".equals(keys)) {
+                values[i] = random.nextInt(MaxValue + 1);
+            }
+            else {
+                // runs of 64 values within a window of 4096
+                if ((i & 63) == 0) base = random.nextInt(MaxValue + 1 - 4096);
+                values[i] = base + random.nextInt(4096);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Keys)
+    public int add() {
+        int cnt = 0;
+        final int off = offset;
+        offset = (offset + 7919 * Keys) % (MaxValue + 1);
+        if (bitSet != null) {
+            for (int v : values) {
+                int x = (v + off) % (MaxValue + 1);
+                if (!bitSet.get(x)) {
+                    bitSet.set(x);
+                    cnt++;
+                }
+            }
+        }
+        else {
+            for (int v : values) {
+                if (numberSet.add((v + off) % (MaxValue + 1))) cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Keys)
+    public int contains() {
+        int cnt = 0;
+        if (bitSet != null) {
+            for (int x : values) {
+                if (bitSet.get(x)) cnt++;
+            }
+        }
+        else {
+            for (int x : values) {
+                if (numberSet.contains(x)) cnt++;
+            }
+        }
+        return cnt;
+    }
+}
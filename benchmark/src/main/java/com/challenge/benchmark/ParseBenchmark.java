@@ -0,0 +1,153 @@
+package com.challenge.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.challenge.FrameParser;
+import com.challenge.NumberParser;
+
+/**
+ * Validating and converting client lines to int values, one operation is one line.
+ *
+ * legacy is the original code, a String for each line checked with isValidText and converted with Integer.parseInt.
+ * parser is NumberParser, which works on the bytes read from the socket without creating a String.
+ * frames is FrameParser, for the same numbers sent as one binary frame, 4 bytes for each number instead of 10.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    private static final int Lines = 4096;
+    private static final int RequiredDigits = 9;
+
+    private String[] lines;
+    private ByteBuffer buffer;
+    private NumberParser parser;
+    private ByteBuffer bufferFrame;
+    private FrameParser frameParser;
+    private long sum;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        lines = new String[Lines];
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<Lines; i++) {
+            lines[i] = String.format("%09d", random.nextInt(1000000000));
+            sb.append(lines[i]).append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        bufferFrame = ByteBuffer.allocateDirect(4 + Lines * 4);
+        bufferFrame.putInt(Lines);
+        for (String line : lines) bufferFrame.putInt(Integer.parseInt(line));
+        parser = new NumberParser(RequiredDigits, RequiredDigits + 1) {
+            @Override
+            protected void onNumbers(int[] numbers, int count) {
+                for (int i=0; i<count; i++) sum += numbers[i];
+            }
+
+            @Override
+            protected void onLine(String text) {
+                throw new IllegalStateException("invalid line="+text);
+            }
+        };
+        frameParser = new FrameParser(999999999) {
+            @Override
+            protected void onNumbers(int[] numbers, int count) {
+                for (int i=0; i<count; i++) sum += numbers[i];
+            }
+
+            @Override
+            protected void onLine(String text) {
+                throw new IllegalStateException("invalid frame="+text);
+            }
+        };
+    }
+
+    /** copy of the original validation in ServerSocketController */
+    private static boolean isValidText(String text) {
+        if (text == null) return false;
+        if (text.length() != RequiredDigits) return false;
+        for (int i=0; i<RequiredDigits; i++) {
+            if (!Character.isDigit(text.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines)
+    public long legacyIsValidText() {
+        long cnt = 0;
+        for (String s : lines) {
+            if (isValidText(s)) cnt++;
+        }
+        return cnt;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines)
+    public long legacyParseInt() {
+        long total = 0;
+        for (String s : lines) {
+            if (isValidText(s)) total += Integer.parseInt(s);
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines)
+    public long legacyFromBytes() {
+        // includes creating the String for each line, as a BufferedReader would
+        long total = 0;
+        ByteBuffer bb = buffer.duplicate();
+        bb.flip();
+        byte[] line = new byte[RequiredDigits];
+        while (bb.remaining() > RequiredDigits) {
+            bb.get(line);
+            bb.get();
+            String s = new String(line, StandardCharsets.US_ASCII);
+            if (isValidText(s)) total += Integer.parseInt(s);
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines)
+    public long parser() {
+        sum = 0;
+        ByteBuffer bb = buffer.duplicate();
+        bb.flip();
+        parser.parse(bb);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines)
+    public long frames() {
+        sum = 0;
+        ByteBuffer bb = bufferFrame.duplicate();
+        bb.flip();
+        frameParser.parse(bb);
+        return sum;
+    }
+}
@@ -0,0 +1,117 @@
+package com.challenge.benchmark;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.challenge.IntRingBuffer;
+
+/**
+ * Queues between the reader and dedup stages, with 4 producer threads and 1 consumer thread.
+ * The added and removed counters are the numbers per microsecond that were moved through the queue.
+ *
+ * linked and array add one boxed Integer at a time, as the original code did.  ring is IntRingBuffer,
+ * which adds and drains batches of primitive ints.  Producers never wait for a full queue, so that
+ * the benchmark can end when the consumer stops, a batch that does not fit is dropped.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueBenchmark {
+
+    private static final int Capacity = 1 << 17;
+    private static final int Batch = 512;
+    private static final int Producers = 4;
+
+    @Param({"linked", "array", "ring"})
+    public String queue;
+
+    private BlockingQueue<Integer> blockingQueue;
+    private IntRingBuffer ringBuffer;
+
+    @Setup
+    public void setup() {
+        if ("linked".equals(queue)) blockingQueue = new LinkedBlockingQueue<>(Capacity);
+        else if ("array".equals(queue)) blockingQueue = new ArrayBlockingQueue<>(Capacity);
+        else ringBuffer = new IntRingBuffer(Capacity);
+    }
+
+    @State(Scope.Thread)
+    public static class Numbers {
+        final int[] values = new int[Batch];
+
+        @Setup
+        public void setup() {
+            for (int i=0; i<Batch; i++) values[i] = i * 7919;
+        }
+    }
+
+    /** numbers moved through the queue, reported by JMH as a rate */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long added;
+        public long removed;
+    }
+
+    @Benchmark
+    @Group("mpsc")
+    @GroupThreads(Producers)
+    public int produce(Numbers numbers, Counters counters) {
+        int cnt = 0;
+        if (ringBuffer != null) {
+            // room for every producer to add a batch, so publish never waits
+            if (ringBuffer.size() + Batch * Producers <= ringBuffer.capacity()) {
+                ringBuffer.publish(numbers.values, 0, Batch);
+                cnt = Batch;
+            }
+        }
+        else {
+            for (int x : numbers.values) {
+                if (blockingQueue.offer(x)) cnt++;
+            }
+        }
+        counters.added += cnt;
+        return cnt;
+    }
+
+    @Benchmark
+    @Group("mpsc")
+    @GroupThreads(1)
+    public long consume(Numbers numbers, Counters counters) {
+        long sum = 0;
+        int n = 0;
+        if (ringBuffer != null) {
+            n = ringBuffer.drain(numbers.values);
+            for (int i=0; i<n; i++) sum += numbers.values[i];
+        }
+        else {
+            for (; n<Batch; n++) {
+                Integer x = blockingQueue.poll();
+                if (x == null) break;
+                sum += x;
+            }
+        }
+        counters.removed += n;
+        return sum;
+    }
+}
@@ -0,0 +1,48 @@
+package com.challenge;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * NumberSet that can be shared by many threads without locking.
+ *
+ * Bits are stored in an AtomicLongArray, and add uses compare and set on the word that holds the bit,
+ * so exactly one thread will see that a number was added, no matter how many threads add it at the same time.
+ */
+public class AtomicBitSet extends WordBitSet {
+
+    private final AtomicLongArray words;
+
+    /**
+     * Create a set for numbers 0 to maxValue.
+     */
+    public AtomicBitSet(int maxValue) {
+        super(maxValue);
+        this.words = new AtomicLongArray((maxValue >>> 6) + 1);
+    }
+
+    @Override
+    public boolean add(int x) {
+        final int ix = x >>> 6;
+        final long mask = 1L << x;
+        for (;;) {
+            long word = words.get(ix);
+            if ((word & mask) != 0) return false;
+            if (words.compareAndSet(ix, word, word | mask)) return true;
+        }
+    }
+
+    @Override
+    public boolean addShared(int x) {
+        return add(x);
+    }
+
+    @Override
+    public boolean contains(int x) {
+        return (words.get(x >>> 6) & (1L << x)) != 0;
+    }
+
+    @Override
+    protected long getWordAcquire(int ix) {
+        return words.getAcquire(ix);
+    }
+}
@@ -0,0 +1,86 @@
+package com.challenge;
+
+import java.util.Arrays;
+
+/**
+ * Adds a block of numbers to a NumberSet in an order that suits the cache, used by a dedup thread instead of adding
+ * each number as it was received.
+ *
+ * Random numbers hit a dense bitset almost uniformly, so nearly every add is a cache and TLB miss, and the branch
+ * on whether the bit was set waits for each miss in turn.  A block is first partitioned by the high bits of its
+ * keys (a stable counting sort, one radix pass), so each partition is a small region of the set and the partitions
+ * are visited in address order.  LocalBitSet adds the keys without a branch per number (addAll), so the misses of
+ * one key do not wait on the bit of the one before, and they overlap.
+ *
+ * The partition is stable, so when a number is in a block more than once only the first is counted as new, and the
+ * counts are the same as adding each number in turn.  Unique numbers are passed on in partition order, not the order
+ * they were received in.
+ *
+ * Only to be used by a single thread, it holds the buffers for partitioning.
+ */
+public class BatchDedup {
+
+    /** number of high bits of a key used to select its partition */
+    private static final int PartitionBits = 8;
+
+    /** smaller blocks are not partitioned, the counting costs more than it saves */
+    private static final int MinPartition = 1024;
+
+    private final NumberSet set;
+    private final LocalBitSet local;
+    private final int shift;
+    private final int[] counts = new int[(1 << PartitionBits) + 1];
+    private final int[] sorted;
+
+    /**
+     * @param set set to add numbers to.
+     * @param maxValue largest key in the set, for the bits used to partition.
+     * @param maxBlock largest block that will be added at one time.
+     */
+    public BatchDedup(NumberSet set, int maxValue, int maxBlock) {
+        this.set = set;
+        this.local = (set instanceof LocalBitSet) ? (LocalBitSet) set : null;
+        this.shift = Math.max(0, (32 - Integer.numberOfLeadingZeros(maxValue)) - PartitionBits);
+        this.sorted = new int[maxBlock];
+    }
+
+    /**
+     * Add a block of numbers to the set.
+     * @param base subtracted from each number for its key in the set, for the set of a shard.
+     * @param unique receives the numbers that were not already in the set, at least count in size.
+     * @return number of unique numbers.
+     */
+    public int add(int[] numbers, int count, int base, int[] unique) {
+        int[] keys = numbers;
+        if (count >= MinPartition) {
+            partition(numbers, count, base);
+            keys = sorted;
+        }
+        if (local != null) return local.addAll(keys, 0, count, base, unique, 0);
+        int cnt = 0;
+        for (int i=0; i<count; i++) {
+            int x = keys[i];
+            if (set.add(x - base)) unique[cnt++] = x;
+        }
+        return cnt;
+    }
+
+    /**
+     * Copy the numbers to sorted, ordered by partition, and in the order received within each partition.
+     */
+    private void partition(int[] numbers, int count, int base) {
+        final int[] counts = this.counts;
+        final int shift = this.shift;
+        Arrays.fill(counts, 0);
+        for (int i=0; i<count; i++) {
+            counts[((numbers[i] - base) >>> shift) + 1]++;
+        }
+        for (int p=1; p<counts.length; p++) {
+            counts[p] += counts[p - 1];
+        }
+        for (int i=0; i<count; i++) {
+            int x = numbers[i];
+            sorted[counts[(x - base) >>> shift]++] = x;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.challenge;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Used to manage a single non-blocking client connection.
+ *
+ * This is created by ServerSocketController when running with selector loops, and is serviced
+ * by a SelectorLoop instead of a dedicated thread.  Input is parsed the same as SocketController, 
+ * a partial line (or frame) at the end of a read is kept by the parser until the rest of it arrives.
+ */
+public abstract class ChannelController extends SocketController {
+
+    private final SocketChannel channel;
+    private final SelectorLoop loop;
+    private final AtomicBoolean abStart = new AtomicBoolean();
+
+    /** time reads were paused by the selector loop, only used by the loop thread */
+    long nsPaused;
+
+    /** ack that has not been completely written, only used by the acker thread */
+    private ByteBuffer bufferAck;
+
+    /**
+     * Create a controller that manages a non-blocking client connection.
+     * @param channel client socket channel.
+     * @param id identifier that can be assigned to this connection.
+     * @param loop selector loop that will service reads for this connection.
+     * @param requiredDigits number of digits required for valid numbers.
+     * @param maxLineLength longest line that can be valid.
+     */
+    public ChannelController(SocketChannel channel, int id, SelectorLoop loop, int requiredDigits, int maxLineLength) {
+        super(channel.socket(), id, requiredDigits, maxLineLength);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * Registers the channel with the selector loop, this does not block.
+     */
+    @Override
+    public void start() throws IOException {
+        if (!abStart.compareAndSet(false, true)) return;
+        channel.configureBlocking(false);
+        loop.register(this);
+    }
+
+    /**
+     * Called to close the channel.
+     */
+    @Override
+    public void stop() {
+        if (!abStart.compareAndSet(true, false)) return;
+        try {
+            channel.close();
+        }
+        catch (Exception e) {
+            // no-op
+        }
+    }
+
+    /**
+     * Write an ack without blocking, the rest of it is written by flushAck if the socket buffer is full.
+     */
+    @Override
+    protected void writeAck(byte[] bytes) throws IOException {
+        bufferAck = ByteBuffer.wrap(bytes);
+        channel.write(bufferAck);
+    }
+
+    @Override
+    protected boolean flushAck() throws IOException {
+        if (bufferAck == null || !bufferAck.hasRemaining()) return true;
+        channel.write(bufferAck);
+        return !bufferAck.hasRemaining();
+    }
+
+    public boolean isStarted() {
+        return abStart.get();
+    }
+
+    /**
+     * Called by the selector loop when the channel is readable.
+     * The buffer is owned by the loop and is reused for all of its connections.
+     * The read is limited to the numbers that could be reserved, at least a batch of them.
+     * @return false if nothing was read as no space could be reserved, the connection is then paused.
+     */
+    boolean onReadable(ByteBuffer buffer) throws IOException {
+        int reserved = reserveInput(NumberParser.BatchSize, getMaxNumbers(buffer.capacity()));
+        if (reserved == 0) return false;
+        try {
+            buffer.clear();
+            buffer.limit(Math.min(buffer.capacity(), getMaxBytes(reserved)));
+            int n = channel.read(buffer);
+            if (n < 0) throw new EOFException("client closed connection");
+            buffer.flip();
+            if (abStart.get()) parse(buffer);
+        }
+        finally {
+            releaseInput();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,206 @@
+package com.challenge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * NumberWriter that formats numbers directly into large direct buffers, as fixed width records of
+ * digits + NL, and writes whole buffers with FileChannel.write.
+ *
+ * Two buffers are used, so the logger thread formats into one buffer while a separate thread writes
+ * the other one to the file.  Numbers of 9 digits are formatted 4 digits at a time from a lookup table,
+ * and each record is stored with one putLong and one putShort.
+ */
+public class ChannelNumberWriter implements NumberWriter {
+    private static Logger LOG = Logger.getLogger(ChannelNumberWriter.class.getName());
+
+    /** size of each buffer */
+    public static final int BufferSize = 1 << 20;
+
+    /** ascii digits for 0000 to 9999, first digit in the low byte */
+    private static final int[] Digits4 = new int[10000];
+    static {
+        for (int i=0; i<Digits4.length; i++) {
+            Digits4[i] = ('0' + i / 1000) | (('0' + i / 100 % 10) << 8) | (('0' + i / 10 % 10) << 16) | (('0' + i % 10) << 24);
+        }
+    }
+
+    private final FileChannel channel;
+    private final int requiredDigits;
+    private final int recordSize;
+
+    /** buffers that are full, waiting for the write thread, an empty buffer is used to stop the thread */
+    private final BlockingQueue<ByteBuffer> queFull = new ArrayBlockingQueue<>(2);
+    /** buffers that have been written and can be used again */
+    private final BlockingQueue<ByteBuffer> queFree = new ArrayBlockingQueue<>(2);
+
+    /** buffer currently used for formatting, owned by the logger thread */
+    private ByteBuffer buffer;
+
+    /** exception from the write thread, reported to the logger thread by the next call */
+    private volatile IOException ioException;
+
+    private final Thread thread;
+
+    /**
+     * Create a writer for the file, and start the thread that writes to it.
+     * @param append true to add to an existing file, otherwise it is created new.
+     * @param requiredDigits number of digits written for each number.
+     */
+    public ChannelNumberWriter(File file, boolean append, int requiredDigits) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        this.requiredDigits = requiredDigits;
+        this.recordSize = requiredDigits + 1;
+        this.buffer = newBuffer();
+        this.queFree.add(newBuffer());
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (;;) {
+                    ByteBuffer bb;
+                    try {
+                        bb = queFull.take();
+                    }
+                    catch (InterruptedException e) {
+                        continue;
+                    }
+                    if (!bb.hasRemaining()) break;
+                    try {
+                        writeFully(bb);
+                    }
+                    catch (IOException e) {
+                        if (ioException == null) LOG.log(Level.WARNING, "exception while writing to log", e);
+                        ioException = e;
+                    }
+                    bb.clear();
+                    queFree.add(bb);
+                }
+            }
+        }, "ChannelNumberWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static ByteBuffer newBuffer() {
+        return ByteBuffer.allocateDirect(BufferSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Called by the write thread for each full buffer.
+     */
+    protected void writeFully(ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) channel.write(bb);
+    }
+
+    @Override
+    public void write(int[] numbers, int count) throws IOException {
+        checkException();
+        ByteBuffer bb = buffer;
+        for (int i=0; i<count; i++) {
+            if (bb.remaining() < recordSize) {
+                submit();
+                bb = buffer;
+            }
+            if (requiredDigits == 9) format9(numbers[i], bb);
+            else format(numbers[i], bb, requiredDigits);
+        }
+    }
+
+    /**
+     * Format 9 digits + NL: the first 8 digits from two table lookups in one long, then the last digit and NL.
+     * The buffer must be little endian.
+     */
+    static void format9(int x, ByteBuffer bb) {
+        int hi = x / 10;
+        int last = x - hi * 10;
+        int hi4 = hi / 10000;
+        int lo4 = hi - hi4 * 10000;
+        bb.putLong((Digits4[hi4] & 0xFFFFFFFFL) | ((long) Digits4[lo4] << 32));
+        bb.putShort((short) (('0' + last) | ('\n' << 8)));
+    }
+
+    static void format(int x, ByteBuffer bb, int requiredDigits) {
+        int pos = bb.position();
+        for (int i=requiredDigits-1; i>=0; i--) {
+            bb.put(pos + i, (byte) ('0' + (x % 10)));
+            x /= 10;
+        }
+        bb.put(pos + requiredDigits, (byte) '\n');
+        bb.position(pos + requiredDigits + 1);
+    }
+
+    /**
+     * Pass the current buffer to the write thread, and wait for a free buffer.
+     */
+    private void submit() throws IOException {
+        buffer.flip();
+        try {
+            queFull.put(buffer);
+            buffer = queFree.take();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for log buffer");
+        }
+    }
+
+    /**
+     * Pass any formatted numbers to the write thread, this does not wait for them to be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkException();
+        if (buffer.position() > 0) submit();
+    }
+
+    /**
+     * Pass any formatted numbers to the write thread, wait for all buffers to be written, and then force the file.
+     */
+    @Override
+    public void sync() throws IOException {
+        flush();
+        try {
+            ByteBuffer bb = queFree.take();
+            queFree.add(bb);
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for log buffer");
+        }
+        checkException();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            // wait for both buffers to be written, then stop the write thread
+            ByteBuffer bb = queFree.take();
+            queFull.put(ByteBuffer.allocate(0));
+            thread.join();
+            queFree.add(bb);
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while closing log");
+        }
+        finally {
+            channel.close();
+        }
+        checkException();
+    }
+
+    private void checkException() throws IOException {
+        IOException e = ioException;
+        if (e != null) throw new IOException("error writing to log", e);
+    }
+}
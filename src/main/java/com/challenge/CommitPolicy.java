@@ -0,0 +1,78 @@
+package com.challenge;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policy for when numbers written to numbers.log are forced to disk (fsync), used by the logger thread.
+ *
+ * A commit is done for a whole group of numbers, never per number:
+ *   none        - never forced, the OS writes the file when it chooses.
+ *   shutdown    - forced once, when the server stops.
+ *   records:n   - forced when at least n numbers have been written since the last commit, and on shutdown.
+ *   ms:n        - forced when numbers have been written and n milliseconds have passed since the last commit, and on shutdown.
+ */
+public class CommitPolicy {
+
+    public static final String TypeNone = "none";
+    public static final String TypeShutdown = "shutdown";
+    public static final String TypeRecords = "records";
+    public static final String TypeMillis = "ms";
+
+    public static final CommitPolicy None = new CommitPolicy(TypeNone, 0);
+
+    private final String type;
+    private final long value;
+    private final long nanos;
+
+    private CommitPolicy(String type, long value) {
+        this.type = type;
+        this.value = value;
+        this.nanos = TypeMillis.equals(type) ? TimeUnit.MILLISECONDS.toNanos(value) : 0;
+    }
+
+    /**
+     * Create a policy from text, for example "records:100000" or "ms:50".
+     */
+    public static CommitPolicy parse(String text) {
+        if (text == null || TypeNone.equals(text)) return None;
+        if (TypeShutdown.equals(text)) return new CommitPolicy(TypeShutdown, 0);
+        int ix = text.indexOf(':');
+        if (ix > 0) {
+            String type = text.substring(0, ix);
+            long value = Long.parseLong(text.substring(ix+1));
+            if (value > 0 && (TypeRecords.equals(type) || TypeMillis.equals(type))) return new CommitPolicy(type, value);
+        }
+        throw new IllegalArgumentException("invalid commit policy="+text);
+    }
+
+    /**
+     * @param records number of numbers written since the last commit.
+     * @param nanosSinceCommit time since the last commit.
+     * @return true if a commit should be done now.
+     */
+    public boolean isDue(long records, long nanosSinceCommit) {
+        if (records <= 0) return false;
+        if (TypeRecords.equals(type)) return records >= value;
+        if (TypeMillis.equals(type)) return nanosSinceCommit >= nanos;
+        return false;
+    }
+
+    /**
+     * @return true if commits are done while running (records or ms), not only on shutdown.
+     */
+    public boolean isPeriodic() {
+        return TypeRecords.equals(type) || TypeMillis.equals(type);
+    }
+
+    /**
+     * @return true if a commit should be done when the server stops.
+     */
+    public boolean isOnShutdown() {
+        return !TypeNone.equals(type);
+    }
+
+    @Override
+    public String toString() {
+        return (value > 0) ? type+":"+value : type;
+    }
+}
@@ -0,0 +1,287 @@
+package com.challenge;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Passes numbers from client connections on to the dedup stage fairly, so one fast client can not starve the others.
+ *
+ * Each connection has its own staging buffer, which only its reader adds to.  One scheduler thread (run) drains
+ * the staging buffers in turn, at most quantum numbers from each in one turn (round robin), and passes them on
+ * with publish.  When the dedup stage is saturated, each connection with data gets the same share of it, no matter
+ * how fast it sends.  When it is not saturated, readers pass numbers on directly, so there is no extra hop, but only
+ * once all numbers staged for the connection have been passed on, so the numbers of a connection stay in order.
+ *
+ * A staging buffer is allocated when its connection first has to stage numbers, so connections that are only read
+ * while the dedup stage is not saturated use no memory for staging.
+ *
+ * Backpressure is for each connection: reads from a connection pause while its own staging buffer is above the
+ * high watermark, until it is at or below the low watermark, so a fast client is held back by TCP flow control
+ * while the others are still read.
+ *
+ * The numbers drained from each connection are counted, for the throughput of each client.
+ */
+public abstract class FairScheduler implements Runnable {
+    private static Logger LOG = Logger.getLogger(FairScheduler.class.getName());
+
+    /** default max numbers taken from one connection in one turn */
+    public static final int DefaultQuantum = 4096;
+
+    /**
+     * capacity of the staging buffer of each connection, at least the numbers of the largest read
+     * (SocketController.BufferSize / 4 + 1), as a blocking reader waits until all of them are reserved
+     */
+    public static final int StagingSize = 1 << 15;
+
+    /** number of empty turns before the scheduler parks, and the time it parks for */
+    private static final int SpinTurns = 100;
+    private static final long ParkNanos = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int quantum;
+    private final int stagingHigh;
+    private final int stagingLow;
+
+    /** staging buffers by connection id, and the same buffers as an array for the scheduler to iterate */
+    private final ConcurrentHashMap<Integer, Staging> mapStaging = new ConcurrentHashMap<>();
+    private volatile Staging[] arrStaging = new Staging[0];
+
+    /** set by close, the scheduler drains all staging buffers and then finishes */
+    private volatile boolean bClosed;
+    private final CountDownLatch latchDone = new CountDownLatch(1);
+
+    /**
+     * Create a scheduler.
+     * @param quantum max numbers taken from one connection in one turn.
+     * @param highWatermark percent of StagingSize above which reads from a connection pause.
+     * @param lowWatermark percent of StagingSize at or below which reads resume.
+     */
+    public FairScheduler(int quantum, int highWatermark, int lowWatermark) {
+        if (quantum < 1) throw new IllegalArgumentException("quantum must be at least 1");
+        this.quantum = quantum;
+        this.stagingHigh = (int) ((long) StagingSize * highWatermark / 100);
+        this.stagingLow = (int) ((long) StagingSize * lowWatermark / 100);
+    }
+
+    public int getQuantum() {
+        return this.quantum;
+    }
+
+    /**
+     * Reserve space in the staging buffer of a connection for the numbers of a read, called by its reader before it
+     * parses.  The reader is the only producer, so the space stays free until it publishes, and nothing needs to be
+     * released.
+     * @return numbers reserved, from min to max, or 0 if less than min is free.
+     */
+    public int reserve(SocketController sc, int min, int max) {
+        IntRingBuffer que = getStaging(sc).que;
+        int free = (que == null) ? StagingSize : que.capacity() - que.size();
+        return (free < min) ? 0 : Math.min(max, free);
+    }
+
+    /**
+     * Add numbers read from a connection to its staging buffer, called by the reader of the connection.  While the
+     * dedup stage is not saturated and all numbers staged for the connection have been passed on, the numbers are
+     * passed on directly if there is space for them, as there is nothing to share.  Numbers drained by the scheduler
+     * but still waiting for space count as staged, so the direct path never overtakes them.
+     * @param nsProbe read time to carry with the batch, 0 for none.
+     * @return true if the staging buffer was full, and this had to wait, only if the read was not reserved.
+     */
+    public boolean publish(SocketController sc, int[] numbers, int count, long nsProbe) {
+        Staging staging = getStaging(sc);
+        if (staging.cntPassed == staging.cntStaged && !isSaturated() && offer(numbers, count, nsProbe)) {
+            staging.adPublished.add(count);
+            return false;
+        }
+        IntRingBuffer que = staging.que;
+        if (que == null) {
+            que = new IntRingBuffer(StagingSize);
+            staging.que = que;
+        }
+        staging.cntStaged += count;
+        return que.publish(numbers, 0, count, nsProbe);
+    }
+
+    /**
+     * Check the staging buffer of a connection against the watermarks, called by its reader before each read.
+     * @return true if reads from the connection are paused.
+     */
+    public boolean isPaused(SocketController sc) {
+        Staging staging = mapStaging.get(sc.getId());
+        if (staging == null || staging.que == null) return false;
+        boolean bPaused = staging.bPaused;
+        bPaused = staging.que.size() > (bPaused ? stagingLow : stagingHigh);
+        staging.bPaused = bPaused;
+        return bPaused;
+    }
+
+    /**
+     * Called when a connection is closed, its staging buffer is removed after the numbers in it are passed on.
+     */
+    public void close(SocketController sc) {
+        Staging staging = mapStaging.get(sc.getId());
+        if (staging != null) staging.bClosed = true;
+    }
+
+    /**
+     * Stop the scheduler after all staged numbers have been passed on, called after all readers have finished.
+     * @return false if the numbers were not all passed on within the timeout.
+     */
+    public boolean close(long timeoutMillis) throws InterruptedException {
+        bClosed = true;
+        return latchDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return number of numbers in all staging buffers.
+     */
+    public int getStagedCount() {
+        int cnt = 0;
+        for (Staging staging : arrStaging) cnt += staging.getStagedCount();
+        return cnt;
+    }
+
+    /**
+     * @return for each connection with a staging buffer, the connection id and the numbers passed on from it so far,
+     * as pairs in one array.
+     */
+    public long[] getPublishedCounts() {
+        Staging[] arr = arrStaging;
+        long[] counts = new long[arr.length * 2];
+        for (int i=0; i<arr.length; i++) {
+            counts[i*2] = arr[i].id;
+            counts[i*2 + 1] = arr[i].adPublished.sum();
+        }
+        return counts;
+    }
+
+    private Staging getStaging(SocketController sc) {
+        Staging staging = mapStaging.get(sc.getId());
+        if (staging != null) return staging;
+        synchronized (this) {
+            staging = mapStaging.get(sc.getId());
+            if (staging != null) return staging;
+            staging = new Staging(sc.getId());
+            mapStaging.put(sc.getId(), staging);
+            Staging[] arr = arrStaging;
+            Staging[] arrNew = new Staging[arr.length + 1];
+            System.arraycopy(arr, 0, arrNew, 0, arr.length);
+            arrNew[arr.length] = staging;
+            arrStaging = arrNew;
+        }
+        // a reader that is still parsing after the connection was closed
+        if (!sc.isStarted()) staging.bClosed = true;
+        return staging;
+    }
+
+    /**
+     * Remove the staging buffers of closed connections that are empty, called by the scheduler.
+     */
+    private synchronized void removeClosed() {
+        Staging[] arr = arrStaging;
+        int n = 0;
+        Staging[] arrNew = new Staging[arr.length];
+        for (Staging staging : arr) {
+            if (staging.bClosed && staging.getStagedCount() == 0) mapStaging.remove(staging.id, staging);
+            else arrNew[n++] = staging;
+        }
+        if (n == arr.length) return;
+        Staging[] arrKeep = new Staging[n];
+        System.arraycopy(arrNew, 0, arrKeep, 0, n);
+        arrStaging = arrKeep;
+    }
+
+    /**
+     * Scheduler loop, takes at most quantum numbers from each staging buffer in turn until close is called and all
+     * staging buffers are empty.
+     */
+    @Override
+    public void run() {
+        final int[] numbers = new int[quantum];
+        long msLastError = 0;
+        int cntEmpty = 0;
+        for (;;) {
+            try {
+                Staging[] arr = arrStaging;
+                boolean bEmpty = true;
+                boolean bRemove = false;
+                for (Staging staging : arr) {
+                    IntRingBuffer que = staging.que;
+                    int n = (que == null) ? 0 : que.drain(numbers);
+                    if (n == 0) {
+                        if (staging.bClosed) bRemove = true;
+                        continue;
+                    }
+                    bEmpty = false;
+                    long nsProbe = que.pollProbe();
+                    // the numbers are held until there is space for them, the readers are not held up
+                    while (!offer(numbers, n, nsProbe)) LockSupport.parkNanos(ParkNanos);
+                    staging.cntPassed += n;
+                    staging.adPublished.add(n);
+                }
+                if (bRemove) removeClosed();
+                if (!bEmpty) {
+                    cntEmpty = 0;
+                    continue;
+                }
+                // all staged numbers have been passed on after readers finished
+                if (bClosed && getStagedCount() == 0) break;
+                if (++cntEmpty > SpinTurns) LockSupport.parkNanos(ParkNanos);
+                else Thread.onSpinWait();
+            }
+            catch (Exception e) {
+                long ms = System.currentTimeMillis();
+                if (ms > msLastError + 5000) {
+                    LOG.log(Level.WARNING, "exception while passing on numbers from clients", e);
+                    msLastError = ms;
+                }
+            }
+        }
+        latchDone.countDown();
+    }
+
+    /**
+     * Called with numbers from one connection, to pass them on to the dedup stage without waiting, by the scheduler
+     * thread, or by the reader of the connection when the dedup stage is not saturated.
+     * @param nsProbe read time of a sampled batch, 0 for none.
+     * @return false if there was not space for all of the numbers, none of them were passed on.
+     */
+    protected abstract boolean offer(int[] numbers, int count, long nsProbe);
+
+    /**
+     * @return true if the dedup stage is saturated, and numbers from connections must be staged to share it.
+     */
+    protected abstract boolean isSaturated();
+
+    /**
+     * Numbers read from one connection and not yet passed on.
+     */
+    private static class Staging {
+        final int id;
+        /** single producer, the reader of the connection, which allocates it when it first stages numbers */
+        volatile IntRingBuffer que;
+        /** numbers staged, used only by the reader */
+        long cntStaged;
+        /** numbers staged and passed on, written only by the scheduler */
+        volatile long cntPassed;
+        /** used only by the reader */
+        boolean bPaused;
+        volatile boolean bClosed;
+        /** numbers passed on, by the scheduler or directly by the reader */
+        final LongAdder adPublished = new LongAdder();
+
+        Staging(int id) {
+            this.id = id;
+        }
+
+        /** @return number of numbers in the staging buffer. */
+        int getStagedCount() {
+            IntRingBuffer que = this.que;
+            return (que == null) ? 0 : que.size();
+        }
+    }
+}
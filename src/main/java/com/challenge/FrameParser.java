@@ -0,0 +1,145 @@
+package com.challenge;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Parses binary frames of numbers from the bytes read from a client connection, after the client has sent the
+ * Handshake line.
+ *
+ * Each frame is a 32 bit count followed by that many 32 bit numbers, all big endian (network order).  A number is
+ * 4 bytes instead of 10 for a line, and needs no conversion, only a range check.  Frames and numbers can be split
+ * across reads, the bytes received so far are kept until the rest arrive.
+ *
+ * A count of TerminateFrame is passed on as the line "terminate".  A count of EndFrame, any other negative count
+ * or a count above MaxFrameValues, and any number out of range, are passed on as an invalid line and parsing
+ * stops, as the connection will be closed.  Valid numbers before it are passed on first, the same as NumberParser.
+ *
+ * One instance is used for each connection, it is not thread safe.
+ */
+public abstract class FrameParser {
+
+    /** line sent by a client to switch from lines to frames, it is not a valid number so older servers reject it */
+    public static final String Handshake = "binary";
+
+    /** count of a frame that terminates the server */
+    public static final int TerminateFrame = -1;
+
+    /** count of a frame that ends the input from a client, the server closes the connection */
+    public static final int EndFrame = -2;
+
+    /** max number of values in one frame */
+    public static final int MaxFrameValues = 1 << 16;
+
+    private final int maxValue;
+
+    /** numbers parsed but not yet passed on */
+    private final int[] batch = new int[NumberParser.BatchSize];
+    private int batchCount;
+
+    /** numbers of the current frame that have not been read yet, -1 when the next int is a count */
+    private int frameRemaining = -1;
+
+    /** bytes of an int that was split across reads, and the number of them */
+    private int partial;
+    private int partialLength;
+
+    /**
+     * Create a parser.
+     * @param maxValue largest valid number, the smallest is 0.
+     */
+    public FrameParser(int maxValue) {
+        if (maxValue < 0) throw new IllegalArgumentException("maxValue can not be negative");
+        this.maxValue = maxValue;
+    }
+
+    /**
+     * Parse all bytes from position to limit of the buffer, the buffer byte order is set to big endian.
+     * Numbers are passed on before returning, so the buffer can be reused.
+     * @return false if a frame that ends the input was read, and the rest of the buffer was not parsed.
+     */
+    public boolean parse(ByteBuffer buffer) {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        int pos = buffer.position();
+        final int limit = buffer.limit();
+
+        while (pos < limit) {
+            int x;
+            if (partialLength == 0 && limit - pos >= 4) {
+                x = buffer.getInt(pos);
+                pos += 4;
+            }
+            else {
+                partial = (partial << 8) | (buffer.get(pos++) & 0xFF);
+                if (++partialLength < 4) continue;
+                x = partial;
+                partial = 0;
+                partialLength = 0;
+            }
+
+            if (frameRemaining > 0) {
+                if (x < 0 || x > maxValue) {
+                    buffer.position(pos);
+                    return invalid("number out of range, value="+(x & 0xFFFFFFFFL));
+                }
+                batch[batchCount++] = x;
+                if (batchCount == batch.length) flush();
+                // the rest of the frame is read without the checks for a count
+                int n = Math.min(--frameRemaining, (limit - pos) >> 2);
+                for (int i=0; i<n; i++, pos+=4) {
+                    x = buffer.getInt(pos);
+                    if (x < 0 || x > maxValue) {
+                        buffer.position(pos + 4);
+                        return invalid("number out of range, value="+(x & 0xFFFFFFFFL));
+                    }
+                    batch[batchCount++] = x;
+                    if (batchCount == batch.length) flush();
+                }
+                frameRemaining -= n;
+                if (frameRemaining == 0) frameRemaining = -1;
+            }
+            else if (x >= 0 && x <= MaxFrameValues) {
+                // a count of 0 is allowed, and is ignored
+                frameRemaining = (x == 0) ? -1 : x;
+            }
+            else {
+                buffer.position(pos);
+                flush();
+                if (x == TerminateFrame) onLine("terminate");
+                else if (x == EndFrame) onLine("end of frames");
+                else onLine("invalid frame, count="+x);
+                return false;
+            }
+        }
+        buffer.position(pos);
+        flush();
+        return true;
+    }
+
+    private boolean invalid(String text) {
+        flush();
+        onLine(text);
+        return false;
+    }
+
+    /**
+     * Pass on any numbers that have been parsed.
+     */
+    private void flush() {
+        if (batchCount == 0) return;
+        int n = batchCount;
+        batchCount = 0;
+        onNumbers(batch, n);
+    }
+
+    /**
+     * Called with valid numbers, the array is reused after this returns.
+     */
+    protected abstract void onNumbers(int[] numbers, int count);
+
+    /**
+     * Called with "terminate" for a terminate frame, or the reason the input ended, parse will return without
+     * reading the rest of the buffer.
+     */
+    protected abstract void onLine(String text);
+}
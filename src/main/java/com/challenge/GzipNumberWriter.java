@@ -0,0 +1,351 @@
+package com.challenge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * NumberWriter that writes numbers.log compressed with gzip, compressing blocks in parallel.
+ *
+ * The logger thread formats numbers into blocks of BlockSize, the same records as ChannelNumberWriter.  Each full
+ * block (or the last block at a sync or close) is compressed as a complete gzip member by a pool of compress threads,
+ * and a write thread appends the members to the file in the order the blocks were formatted.  A file of gzip members
+ * one after another is a valid gzip file, so it can be read with gunzip, zcat or GZIPInputStream.
+ *
+ * Blocks are compressed with Huffman coding only (no string matching).  Random numbers have few repeated strings, so
+ * this is both faster and smaller than deflate level 1: each digit is coded in about 3.4 bits, numbers.log is about
+ * 2.2 times smaller, and one compress thread keeps up with more than 5 million numbers per second.
+ *
+ * Blocks are taken from a fixed pool, which bounds memory and holds the logger thread back when compression can not
+ * keep up.  A flush does not end the member of the current block: the logger thread compresses the numbers formatted
+ * since the last flush with a sync flush (the deflate data so far ends on a byte, and can be decompressed), and they
+ * are written as the start of the member, which is ended by a compress thread when the block is full.  So frequent
+ * flushes cost an empty stored block and new Huffman tables each, not a member of their own.
+ */
+public class GzipNumberWriter implements NumberWriter {
+    private static Logger LOG = Logger.getLogger(GzipNumberWriter.class.getName());
+
+    /** size of the numbers formatted into one gzip member, before compression */
+    public static final int BlockSize = 1 << 20;
+
+    /** gzip member header: magic, deflate, no flags, no time, no extra flags, unknown OS */
+    private static final byte[] Header = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    /** time to park while waiting for members to be written */
+    private static final long ParkNanos = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /** used to stop the write thread */
+    private static final Future<ByteBuffer> End = CompletableFuture.completedFuture(null);
+
+    private final FileChannel channel;
+    private final int requiredDigits;
+    private final int recordSize;
+
+    private final ExecutorService executor;
+    private final ThreadLocal<Deflater> tlDeflater = new ThreadLocal<>();
+
+    /** blocks that are not being formatted or compressed */
+    private final BlockingQueue<ByteBuffer> queFree;
+    /** compressed members in the order their blocks were formatted, End to stop the write thread */
+    private final BlockingQueue<Future<ByteBuffer>> queWrite;
+
+    /** block currently used for formatting, owned by the logger thread */
+    private ByteBuffer buffer;
+    /** deflater of the member of the current block once part of it was flushed, null before, owned by the logger */
+    private Deflater deflater;
+    /** bytes of the current block already compressed at a flush */
+    private int flushed;
+
+    /** blocks passed on for compression by the logger thread, and members written by the write thread */
+    private long cntSubmitted;
+    private volatile long cntWritten;
+
+    /** exception from the write thread, reported to the logger thread by the next call */
+    private volatile IOException ioException;
+
+    private final Thread thread;
+
+    /**
+     * Create a writer for the file, and start the compress and write threads.
+     * @param append true to add members to an existing file, otherwise it is created new.
+     * @param requiredDigits number of digits written for each number.
+     * @param threads number of threads that compress blocks.
+     */
+    public GzipNumberWriter(File file, boolean append, int requiredDigits, int threads) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        this.requiredDigits = requiredDigits;
+        this.recordSize = requiredDigits + 1;
+
+        // two blocks for each compress thread, so one can be formatted while another is compressed
+        int blocks = threads * 2 + 1;
+        this.queFree = new ArrayBlockingQueue<>(blocks);
+        this.queWrite = new ArrayBlockingQueue<>(blocks + 1);
+        for (int i=1; i<blocks; i++) queFree.add(newBuffer());
+        this.buffer = newBuffer();
+
+        final AtomicInteger aiThread = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GzipNumberWriter.Compress."+aiThread.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (;;) {
+                    Future<ByteBuffer> future;
+                    try {
+                        future = queWrite.take();
+                    }
+                    catch (InterruptedException e) {
+                        continue;
+                    }
+                    ByteBuffer bb = getMember(future);
+                    if (future == End) break;
+                    // after an exception members are not written, the file would be out of order
+                    if (bb != null && ioException == null) {
+                        try {
+                            while (bb.hasRemaining()) channel.write(bb);
+                        }
+                        catch (IOException e) {
+                            LOG.log(Level.WARNING, "exception while writing to log", e);
+                            ioException = e;
+                        }
+                    }
+                    cntWritten = cntWritten + 1;
+                }
+            }
+        }, "GzipNumberWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static ByteBuffer newBuffer() {
+        return ByteBuffer.allocate(BlockSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Wait for a member to be compressed, called by the write thread.
+     * @return the member, or null if it could not be compressed.
+     */
+    private ByteBuffer getMember(Future<ByteBuffer> future) {
+        for (;;) {
+            try {
+                return future.get();
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+            catch (ExecutionException e) {
+                if (ioException == null) {
+                    LOG.log(Level.WARNING, "exception while compressing log", e.getCause());
+                    ioException = new IOException("error compressing log", e.getCause());
+                }
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public void write(int[] numbers, int count) throws IOException {
+        checkException();
+        ByteBuffer bb = buffer;
+        for (int i=0; i<count; i++) {
+            if (bb.remaining() < recordSize) {
+                submit();
+                bb = buffer;
+            }
+            if (requiredDigits == 9) ChannelNumberWriter.format9(numbers[i], bb);
+            else ChannelNumberWriter.format(numbers[i], bb, requiredDigits);
+        }
+    }
+
+    /**
+     * Pass the current block to a compress thread to end its member, and the member to the write thread, then wait
+     * for a free block.
+     */
+    private void submit() throws IOException {
+        final ByteBuffer bb = buffer;
+        final Deflater deflaterMember = deflater;
+        final int from = flushed;
+        bb.flip();
+        deflater = null;
+        flushed = 0;
+        try {
+            queWrite.put(executor.submit(new Callable<ByteBuffer>() {
+                @Override
+                public ByteBuffer call() {
+                    try {
+                        return compress(bb, from, deflaterMember);
+                    }
+                    finally {
+                        if (deflaterMember != null) deflaterMember.end();
+                        bb.clear();
+                        queFree.add(bb);
+                    }
+                }
+            }));
+            cntSubmitted++;
+            buffer = queFree.take();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for log block");
+        }
+    }
+
+    private static Deflater newDeflater() {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setStrategy(Deflater.HUFFMAN_ONLY);
+        // the strategy is applied by the next call to deflate, which does nothing else, so a sync flush would not
+        // be made by the first call
+        deflater.deflate(new byte[0]);
+        return deflater;
+    }
+
+    /**
+     * Compress the rest of a block and end its gzip member: header (unless part of the block was flushed), deflate
+     * data, and a trailer of the CRC32 and length of the block.
+     * @param from bytes of the block already compressed at a flush.
+     * @param deflaterMember deflater that compressed them, null if none were.
+     */
+    private ByteBuffer compress(ByteBuffer bb, int from, Deflater deflaterMember) {
+        final byte[] src = bb.array();
+        final int length = bb.limit();
+        Deflater deflater = deflaterMember;
+        if (deflater == null) {
+            deflater = tlDeflater.get();
+            if (deflater == null) {
+                deflater = newDeflater();
+                tlDeflater.set(deflater);
+            }
+            deflater.reset();
+        }
+        deflater.setInput(src, from, length - from);
+        deflater.finish();
+
+        byte[] out = new byte[Header.length + (length - from) / 2 + 64];
+        int n = 0;
+        if (deflaterMember == null) {
+            System.arraycopy(Header, 0, out, 0, Header.length);
+            n = Header.length;
+        }
+        for (;;) {
+            n += deflater.deflate(out, n, out.length - n);
+            if (deflater.finished()) break;
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        if (out.length < n + 8) out = Arrays.copyOf(out, n + 8);
+
+        CRC32 crc = new CRC32();
+        crc.update(src, 0, length);
+        ByteBuffer member = ByteBuffer.wrap(out, 0, n + 8).order(ByteOrder.LITTLE_ENDIAN);
+        member.putInt(n, (int) crc.getValue());
+        member.putInt(n + 4, length);
+        return member;
+    }
+
+    /**
+     * Compress the numbers formatted since the last flush into the member of the current block with a sync flush,
+     * on the logger thread, and pass them to the write thread.  The member is not ended, this does not wait for
+     * them to be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkException();
+        final ByteBuffer bb = buffer;
+        final int to = bb.position();
+        if (to == flushed) return;
+        byte[] out = new byte[Header.length + (to - flushed) / 2 + 64];
+        int n = 0;
+        if (deflater == null) {
+            deflater = newDeflater();
+            System.arraycopy(Header, 0, out, 0, Header.length);
+            n = Header.length;
+        }
+        deflater.setInput(bb.array(), flushed, to - flushed);
+        for (;;) {
+            n += deflater.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH);
+            // the output is complete when it did not fill the space given
+            if (n < out.length) break;
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        flushed = to;
+        try {
+            queWrite.put(CompletableFuture.completedFuture(ByteBuffer.wrap(out, 0, n)));
+            cntSubmitted++;
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting to write log");
+        }
+    }
+
+    /**
+     * End the member of the current block, wait for all members to be written, and then force the file.
+     */
+    @Override
+    public void sync() throws IOException {
+        checkException();
+        if (buffer.position() > 0) submit();
+        waitWritten();
+        checkException();
+        channel.force(false);
+    }
+
+    private void waitWritten() throws IOException {
+        while (cntWritten < cntSubmitted) {
+            if (!thread.isAlive()) throw new IOException("log write thread has stopped");
+            LockSupport.parkNanos(ParkNanos);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            checkException();
+            if (buffer.position() > 0) submit();
+            queWrite.put(End);
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while closing log");
+        }
+        finally {
+            if (deflater != null) deflater.end();
+            executor.shutdown();
+            channel.close();
+        }
+        checkException();
+    }
+
+    private void checkException() throws IOException {
+        IOException e = ioException;
+        if (e != null) throw new IOException("error writing to log", e);
+    }
+}
@@ -0,0 +1,274 @@
+package com.challenge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated ring buffer of primitive int values, for multiple producer threads and a single consumer thread.
+ *
+ * Producers claim a range of slots for a whole batch with a single CAS, copy the values, and then mark each slot
+ * as published.  The consumer drains all published values in order, up to the size of its array, and then frees
+ * the slots with a single write.  There is no allocation and no lock for adding or removing values.
+ *
+ * A producer that finds the buffer full will spin briefly, yield and then park for a short time before checking
+ * again.  A consumer that finds it empty waits as set by its WaitStrategy, the same by default.  With a blocking
+ * strategy the consumer parks until signalled, so each producer checks for a parked consumer after a batch.
+ *
+ * Producers can reserve space before they have values to add (reserve, release), so a producer that adds no more
+ * than it reserved never waits, as long as all producers reserve.  A reader reserves before it parses a read.
+ *
+ * A batch can carry a timestamp (probe), used to sample latency through the pipeline without any cost per value.
+ * Only one probe is held at a time, a probe offered while another is pending is ignored.
+ */
+public class IntRingBuffer {
+
+    /** number of times to spin, and then yield, before parking */
+    private static final int SpinTries = 100;
+    private static final int YieldTries = 10;
+    /** time for a producer to park when waiting, the consumer does not signal */
+    private static final long ParkNanos = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int[] values;
+    private final int mask;
+    private final int shift;
+
+    /**
+     * For each slot, the lap + 1 of the sequence that was last published to it.
+     * A slot is readable when this matches the lap of the sequence the consumer expects.
+     */
+    private final AtomicIntegerArray published;
+
+    /** next sequence to be claimed by producers */
+    private final AtomicLong tail = new AtomicLong();
+    /** next sequence to be read by the consumer, all sequences before it are free */
+    private final AtomicLong head = new AtomicLong();
+
+    /** sequence of the last value of the batch that carries the probe, ProbeFree or ProbeBusy if there is none */
+    private final AtomicLong probeSeq = new AtomicLong(ProbeFree);
+    private volatile long probeNanos;
+    private static final long ProbeFree = -1;
+    private static final long ProbeBusy = -2;
+
+    /** space reserved by producers, that values they add are counted against until they release it */
+    private final AtomicInteger aiReserved = new AtomicInteger();
+
+    /** consumer thread while it is parked by a blocking wait strategy, for producers to unpark */
+    private volatile Thread consumer;
+
+    /**
+     * Create a ring buffer.
+     * @param minCapacity capacity is rounded up to a power of 2.
+     */
+    public IntRingBuffer(int minCapacity) {
+        if (minCapacity < 2 || minCapacity > (1 << 30)) throw new IllegalArgumentException("invalid capacity="+minCapacity);
+        int capacity = Integer.highestOneBit(minCapacity - 1) << 1;
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfTrailingZeros(capacity);
+        this.published = new AtomicIntegerArray(capacity);
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    /**
+     * Number of values that have been claimed by producers and not yet drained, this is an estimate when
+     * there are concurrent producers or a concurrent consumer.
+     */
+    public int size() {
+        long h = head.get();
+        return (int) Math.max(0, Math.min(values.length, tail.get() - h));
+    }
+
+    /**
+     * @return sequence after the last value claimed by producers, the total number of values ever claimed.
+     */
+    public long getWriteSequence() {
+        return tail.get();
+    }
+
+    /**
+     * @return sequence after the last value drained by the consumer, the total number of values ever drained.
+     */
+    public long getReadSequence() {
+        return head.get();
+    }
+
+    /**
+     * Reserve space for up to max values without waiting.  Values added while the space is reserved are counted
+     * both in size and in the reservation, so the free space is never over estimated.  Safe to call from any 
+     * number of threads.
+     * @return number of values reserved, from min to max, or 0 if less than min is free.
+     */
+    public int reserve(int min, int max) {
+        for (;;) {
+            int r = aiReserved.get();
+            int free = values.length - size() - r;
+            if (free < min) return 0;
+            int n = Math.min(max, free);
+            if (aiReserved.compareAndSet(r, r + n)) return n;
+        }
+    }
+
+    /**
+     * Release space reserved with reserve, after the values for it have been added.
+     */
+    public void release(int n) {
+        aiReserved.addAndGet(-n);
+    }
+
+    /**
+     * @return space reserved by producers and not yet released.
+     */
+    public int getReserved() {
+        return aiReserved.get();
+    }
+
+    /**
+     * Add values, waiting for space if the buffer is full.  Safe to call from any number of threads.
+     * Batches larger than the capacity are added in more than one part.
+     * @return true if the buffer was full and this had to wait for space.
+     */
+    public boolean publish(int[] src, int offset, int length) {
+        return publish(src, offset, length, 0);
+    }
+
+    /**
+     * Add values, waiting for space if the buffer is full.  Safe to call from any number of threads.
+     * @param probeNanos timestamp to carry with the batch, 0 for none.
+     * @return true if the buffer was full and this had to wait for space.
+     */
+    public boolean publish(int[] src, int offset, int length, long probeNanos) {
+        boolean bWaited = false;
+        while (length > 0) {
+            int n = Math.min(length, values.length);
+            long seq = claim(n);
+            if (seq < 0) {
+                bWaited = true;
+                seq = claimWaiting(n);
+            }
+            for (int i=0; i<n-1; i++) {
+                long s = seq + i;
+                int ix = (int) s & mask;
+                values[ix] = src[offset + i];
+                published.lazySet(ix, lap(s));
+            }
+            // a volatile write for the last value, so the check for a parked consumer can not be done before it
+            long last = seq + n - 1;
+            values[(int) last & mask] = src[offset + n - 1];
+            published.set((int) last & mask, lap(last));
+            Thread waiter = consumer;
+            if (waiter != null) LockSupport.unpark(waiter);
+            if (probeNanos != 0 && length == n && probeSeq.get() == ProbeFree && probeSeq.compareAndSet(ProbeFree, ProbeBusy)) {
+                this.probeNanos = probeNanos;
+                probeSeq.set(seq + n - 1);
+            }
+            offset += n;
+            length -= n;
+        }
+        return bWaited;
+    }
+
+    /**
+     * Try to claim n slots without waiting.
+     * @return first sequence of the claimed range, or -1 if there is not enough space.
+     */
+    private long claim(int n) {
+        for (;;) {
+            long t = tail.get();
+            if (t + n - head.get() > values.length) return -1;
+            if (tail.compareAndSet(t, t + n)) return t;
+        }
+    }
+
+    private long claimWaiting(int n) {
+        for (int tries=0; ; tries++) {
+            long seq = claim(n);
+            if (seq >= 0) return seq;
+            backoff(tries);
+        }
+    }
+
+    /**
+     * Remove up to dst.length values without waiting, must only be called by the consumer thread.
+     * @return number of values copied to dst, 0 if the buffer is empty.
+     */
+    public int drain(int[] dst) {
+        final long h = head.get();
+        final int max = dst.length;
+        int n = 0;
+        for (; n<max; n++) {
+            long s = h + n;
+            int ix = (int) s & mask;
+            if (published.get(ix) != lap(s)) break;
+            dst[n] = values[ix];
+        }
+        if (n > 0) head.lazySet(h + n);
+        return n;
+    }
+
+    /**
+     * Remove up to dst.length values, waiting if the buffer is empty, must only be called by the consumer thread.
+     * @param timeoutNanos max time to wait for a value.
+     * @return number of values copied to dst, 0 if the timeout expired.
+     */
+    public int drain(int[] dst, long timeoutNanos) {
+        return drain(dst, timeoutNanos, WaitStrategy.Default);
+    }
+
+    /**
+     * Remove up to dst.length values, waiting as set by the strategy if the buffer is empty, must only be called by
+     * the consumer thread.
+     * @param timeoutNanos max time to wait for a value.
+     * @return number of values copied to dst, 0 if the timeout expired.
+     */
+    public int drain(int[] dst, long timeoutNanos, WaitStrategy wait) {
+        int n = drain(dst);
+        if (n > 0) return n;
+        final long deadline = System.nanoTime() + timeoutNanos;
+        final boolean bBlocking = wait.isBlocking();
+        for (int tries=0; ; tries++) {
+            if (bBlocking) await(deadline);
+            else wait.idle(tries);
+            n = drain(dst);
+            if (n > 0 || System.nanoTime() - deadline >= 0) return n;
+        }
+    }
+
+    /**
+     * Park the consumer until a producer publishes a value, or the deadline.  The consumer is set before the next
+     * slot is checked, and a producer checks for it after publishing, so one of them always sees the other.
+     */
+    private void await(long deadline) {
+        consumer = Thread.currentThread();
+        final long h = head.get();
+        if (published.get((int) h & mask) != lap(h)) LockSupport.parkNanos(this, deadline - System.nanoTime());
+        consumer = null;
+    }
+
+    /**
+     * Take the probe if the batch that carries it has been drained, must only be called by the consumer thread.
+     * @return timestamp of the probe, 0 if there is none.
+     */
+    public long pollProbe() {
+        long seq = probeSeq.get();
+        if (seq < 0 || seq >= head.get()) return 0;
+        long nanos = probeNanos;
+        probeSeq.set(ProbeFree);
+        return nanos;
+    }
+
+    private int lap(long seq) {
+        return (int) (seq >>> shift) + 1;
+    }
+
+    private static void backoff(int tries) {
+        if (tries < SpinTries) return;
+        if (tries < SpinTries + YieldTries) Thread.yield();
+        else LockSupport.parkNanos(ParkNanos);
+    }
+}
@@ -0,0 +1,85 @@
+package com.challenge;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latency values in microseconds, with fixed memory and no allocation for each value.
+ *
+ * Values below 16us have their own bucket, larger values use 16 buckets for each power of 2, so the
+ * error of a percentile is at most 1/16 of its value.  Safe for concurrent recording and reading.
+ */
+public class LatencyHistogram {
+
+    private static final int SubBits = 4;
+    private static final int SubCount = 1 << SubBits;
+    private static final int BucketCount = (64 - SubBits + 1) * SubCount;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BucketCount);
+    private final AtomicLong alCount = new AtomicLong();
+    private final AtomicLong alSum = new AtomicLong();
+    private final AtomicLong alMax = new AtomicLong();
+
+    /**
+     * Record a latency.
+     * @param nanos latency in nanoseconds, negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        long us = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(index(us));
+        alCount.incrementAndGet();
+        alSum.addAndGet(us);
+        for (long max; us > (max = alMax.get()); ) {
+            if (alMax.compareAndSet(max, us)) break;
+        }
+    }
+
+    private static int index(long us) {
+        if (us < SubCount) return (int) us;
+        int exp = 63 - Long.numberOfLeadingZeros(us);
+        int sub = (int) (us >>> (exp - SubBits)) & (SubCount - 1);
+        return (exp - SubBits + 1) * SubCount + sub;
+    }
+
+    /** @return highest value in the bucket */
+    private static long upperBound(int index) {
+        if (index < SubCount) return index;
+        int exp = index / SubCount + SubBits - 1;
+        long sub = index % SubCount;
+        return ((SubCount + sub + 1) << (exp - SubBits)) - 1;
+    }
+
+    public long getCount() {
+        return alCount.get();
+    }
+
+    public long getMaxMicros() {
+        return alMax.get();
+    }
+
+    public long getMeanMicros() {
+        long count = alCount.get();
+        return (count == 0) ? 0 : alSum.get() / count;
+    }
+
+    /**
+     * @param percentile 0 to 100.
+     * @return value in microseconds that the percentile of recorded values are at or below, 0 if there are no values.
+     */
+    public long getPercentileMicros(double percentile) {
+        long total = 0;
+        long[] counts = new long[BucketCount];
+        for (int i=0; i<BucketCount; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        long target = (long) Math.ceil(total * percentile / 100);
+        long sum = 0;
+        for (int i=0; i<BucketCount; i++) {
+            sum += counts[i];
+            if (sum >= Math.max(1, target)) return Math.min(upperBound(i), alMax.get());
+        }
+        return alMax.get();
+    }
+}
@@ -0,0 +1,74 @@
+package com.challenge;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * NumberSet of bits in an array of longs, only to be used by a single thread to add numbers.
+ *
+ * Words are written with release ordering, a plain store on x86, so other threads can run queries while numbers
+ * are added (see NumberSetQuery).
+ */
+public class LocalBitSet extends WordBitSet {
+
+    private static final VarHandle Words = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] words;
+
+    /**
+     * Create a set for numbers 0 to maxValue.
+     */
+    public LocalBitSet(int maxValue) {
+        super(maxValue);
+        this.words = new long[(maxValue >>> 6) + 1];
+    }
+
+    @Override
+    public boolean add(int x) {
+        final int ix = x >>> 6;
+        final long mask = 1L << x;
+        final long word = words[ix];
+        if ((word & mask) != 0) return false;
+        Words.setRelease(words, ix, word | mask);
+        return true;
+    }
+
+    /**
+     * Add numbers from - to of the array, for BatchDedup.  There is no branch on whether each bit was already set,
+     * so a cache miss for one number does not hold up the next.
+     * @param base subtracted from each number for its key.
+     * @param unique receives the numbers that were not already in the set, from cnt.
+     * @return cnt plus the number of unique numbers.
+     */
+    public int addAll(int[] numbers, int from, int to, int base, int[] unique, int cnt) {
+        final long[] words = this.words;
+        for (int i=from; i<to; i++) {
+            final int x = numbers[i];
+            final int key = x - base;
+            final int ix = key >>> 6;
+            final long mask = 1L << key;
+            final long word = words[ix];
+            Words.setRelease(words, ix, word | mask);
+            unique[cnt] = x;
+            // 1 if the bit was not set: (word & mask) - 1 is negative only when it is 0
+            cnt += (int) (((word & mask) - 1) >>> 63);
+        }
+        return cnt;
+    }
+
+    @Override
+    public boolean addShared(int x) {
+        final long mask = 1L << x;
+        return ((long) Words.getAndBitwiseOr(words, x >>> 6, mask) & mask) == 0;
+    }
+
+    @Override
+    public boolean contains(int x) {
+        return (words[x >>> 6] & (1L << x)) != 0;
+    }
+
+    @Override
+    protected long getWordAcquire(int ix) {
+        return (long) Words.getAcquire(words, ix);
+    }
+}
@@ -0,0 +1,150 @@
+package com.challenge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * NumberSet stored in a memory mapped file, so it is not on the heap and can be used again after a restart.
+ *
+ * The file starts with a header that holds the state of the set, followed by the bits.  While the server is running
+ * the state is dirty, as bits are set before the numbers are written to numbers.log.  When the server stops after all
+ * unique numbers have been written, a checkpoint writes the bits and marks the state clean with the length of numbers.log.
+ * The set can only be used again if it is clean and numbers.log still has that length, otherwise it must be cleared
+ * and rebuilt from numbers.log.
+ *
+ * Only to be used by a single thread to add numbers, words are written with release ordering so other threads
+ * can run queries (see NumberSetQuery).
+ */
+public class MappedBitSet extends WordBitSet implements Closeable {
+
+    private static final long Magic = 0x4e554d4245525331L;  // NUMBERS1
+    private static final int StateClean = 1;
+    private static final int StateDirty = 2;
+
+    /** header: magic, max value, state, length of numbers.log at checkpoint */
+    private static final int OffsetMagic = 0;
+    private static final int OffsetMaxValue = 8;
+    private static final int OffsetState = 16;
+    private static final int OffsetLogLength = 24;
+    private static final int HeaderSize = 64;
+
+    /** words of the bits, the mapping is page aligned so all words are aligned */
+    private static final VarHandle Words = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final int size;
+    private MappedByteBuffer buffer;
+
+    /**
+     * Open or create the file for numbers 0 to maxValue.
+     * A file that was created for another max value is cleared.
+     */
+    public MappedBitSet(File file, int maxValue) throws IOException {
+        super(maxValue);
+        this.file = file;
+        this.size = HeaderSize + (((maxValue >>> 6) + 1) << 3);
+        this.raf = new RandomAccessFile(file, "rw");
+        boolean bNew = raf.length() != size;
+        map();
+        if (bNew || buffer.getLong(OffsetMagic) != Magic || buffer.getLong(OffsetMaxValue) != maxValue) clear();
+    }
+
+    private void map() throws IOException {
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.nativeOrder());
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * @return true if the last checkpoint was not followed by any changes.
+     */
+    public boolean isClean() {
+        return buffer.getInt(OffsetState) == StateClean;
+    }
+
+    /**
+     * @return length of numbers.log when the last checkpoint was written.
+     */
+    public long getCheckpointLogLength() {
+        return buffer.getLong(OffsetLogLength);
+    }
+
+    /**
+     * Remove all numbers, the state will be dirty.
+     * The file is truncated and extended again, so the OS provides the zeroed pages.
+     */
+    public void clear() throws IOException {
+        buffer = null;
+        raf.setLength(0);
+        raf.setLength(size);
+        map();
+        buffer.putLong(OffsetMagic, Magic);
+        buffer.putLong(OffsetMaxValue, maxValue);
+        buffer.putInt(OffsetState, StateDirty);
+    }
+
+    /**
+     * Mark the set as changed since the last checkpoint, written to the file before returning.
+     * Must be called before any numbers are added.
+     */
+    public void markDirty() {
+        buffer.putInt(OffsetState, StateDirty);
+        buffer.force();
+    }
+
+    /**
+     * Write all bits to the file, and then mark the state as clean.
+     * @param logLength length of numbers.log, which must contain every number in this set.
+     */
+    public void checkpoint(long logLength) {
+        buffer.force();
+        buffer.putLong(OffsetLogLength, logLength);
+        buffer.putInt(OffsetState, StateClean);
+        buffer.force();
+    }
+
+    @Override
+    public boolean add(int x) {
+        final int ix = HeaderSize + ((x >>> 6) << 3);
+        final long mask = 1L << x;
+        long word = buffer.getLong(ix);
+        if ((word & mask) != 0) return false;
+        Words.setRelease(buffer, ix, word | mask);
+        return true;
+    }
+
+    @Override
+    public boolean addShared(int x) {
+        final long mask = 1L << x;
+        return ((long) Words.getAndBitwiseOr(buffer, HeaderSize + ((x >>> 6) << 3), mask) & mask) == 0;
+    }
+
+    @Override
+    public boolean contains(int x) {
+        return (buffer.getLong(HeaderSize + ((x >>> 6) << 3)) & (1L << x)) != 0;
+    }
+
+    @Override
+    protected long getWordAcquire(int ix) {
+        return (long) Words.getAcquire(buffer, HeaderSize + (ix << 3));
+    }
+
+    /**
+     * Close the file, the mapping is released when the buffer is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,252 @@
+package com.challenge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Used to rebuild a NumberSet from an existing numbers.log, so that a restart will not log the same numbers again.
+ *
+ * The log is parsed with NumberParser, the same as client input.  If the last line is not complete,
+ * for example after a crash, then it is removed from the file.
+ *
+ * A WordBitSet is rebuilt in parallel: the log is split into chunks of ChunkSize that end on a line, and fork/join
+ * tasks memory map and parse the chunks, adding numbers with addShared.  Any other set, or any set when the
+ * fork/join pool has only one thread, is rebuilt by one thread reading the log.
+ */
+public class NumberLogReplay {
+    private static Logger LOG = Logger.getLogger(NumberLogReplay.class.getName());
+
+    /** size of buffer used for reading the log */
+    private static final int BufferSize = 1 << 20;
+
+    /** size of the part of the log mapped and parsed by one task */
+    private static final long ChunkSize = 32 << 20;
+
+    private NumberLogReplay() {
+    }
+
+    /**
+     * Add every number in every segment listed in the manifest to the set.
+     * @return number of numbers read from the segments.
+     */
+    public static long replaySegments(File manifest, NumberSet set, int requiredDigits) throws IOException {
+        long count = 0;
+        for (File file : NumberLogSegments.readManifest(manifest)) count += replay(file, set, requiredDigits);
+        return count;
+    }
+
+    /**
+     * Add every number in the log file to the set.
+     * @see #replay(File, NumberSet, int, int)
+     */
+    public static long replay(File file, NumberSet set, int requiredDigits) throws IOException {
+        return replay(file, set, requiredDigits, 0);
+    }
+
+    /**
+     * Add every number in the log file to the set.
+     * @param file log file, nothing is done if it does not exist.
+     * @param set set to add numbers to.
+     * @param requiredDigits number of digits for each number in the log.
+     * @param base subtracted from each number before it is added, for the set of a shard.
+     * @return number of numbers read from the log.
+     * @throws IOException if the log can not be read, or contains a line that is not a valid number.
+     */
+    public static long replay(File file, NumberSet set, int requiredDigits, int base) throws IOException {
+        if (!file.exists()) return 0;
+        long ms = System.currentTimeMillis();
+        long count;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            if (set instanceof WordBitSet && ForkJoinPool.getCommonPoolParallelism() > 1) count = replayParallel(file, channel, (WordBitSet) set, requiredDigits, base);
+            else count = replaySequential(file, channel, set, requiredDigits, base);
+        }
+        LOG.log(Level.INFO, "replayed "+count+" numbers from "+file+" in "+(System.currentTimeMillis()-ms)+"ms");
+        return count;
+    }
+
+    private static long replaySequential(File file, FileChannel channel, final NumberSet set, int requiredDigits,
+            final int base) throws IOException {
+        final long[] count = new long[1];
+        final String[] invalid = new String[1];
+
+        NumberParser parser = new NumberParser(requiredDigits, requiredDigits + 1) {
+            @Override
+            protected void onNumbers(int[] numbers, int cnt) {
+                for (int i=0; i<cnt; i++) set.add(numbers[i] - base);
+                count[0] += cnt;
+            }
+
+            @Override
+            protected void onLine(String text) {
+                invalid[0] = text;
+            }
+        };
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BufferSize);
+        long position = 0;
+        for (;;) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n < 0) break;
+            position += n;
+            buffer.flip();
+            if (!parser.parse(buffer)) {
+                throw new IOException("invalid line in "+file+" before position "+position+", text="+invalid[0]);
+            }
+        }
+
+        int partial = parser.getPartialLength();
+        if (partial > 0) truncate(file, channel, position - partial);
+        return count[0];
+    }
+
+    /**
+     * Parse the complete lines of the log with fork/join tasks, and then remove an incomplete last line.
+     */
+    private static long replayParallel(File file, FileChannel channel, WordBitSet set, int requiredDigits,
+            int base) throws IOException {
+        final int maxLine = requiredDigits + 2;
+        final long size = channel.size();
+        final long end = findLastLineEnd(channel, Math.max(0, size - maxLine), size);
+        if (end < 0 && size >= maxLine) {
+            throw new IOException("invalid line in "+file+" at the end, no NL in the last "+maxLine+" bytes");
+        }
+        final long endLines = Math.max(0, end);
+
+        int chunks = (int) ((endLines + ChunkSize - 1) / ChunkSize);
+        long[] bounds = new long[chunks + 1];
+        bounds[chunks] = endLines;
+        for (int i=1; i<chunks; i++) {
+            long pos = findFirstLineEnd(channel, i * ChunkSize - 1, Math.min(i * ChunkSize - 1 + maxLine, endLines));
+            if (pos < 0) throw new IOException("invalid line in "+file+" near position "+(i * ChunkSize));
+            bounds[i] = pos;
+        }
+
+        long count = 0;
+        if (chunks > 0) {
+            try {
+                count = ForkJoinPool.commonPool().invoke(new ReplayTask(file, channel, bounds, 0, chunks, set, requiredDigits, base));
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        if (endLines < size) truncate(file, channel, endLines);
+        LOG.log(Level.FINE, "replayed "+file+" in "+chunks+" chunks, parallelism="+ForkJoinPool.getCommonPoolParallelism());
+        return count;
+    }
+
+    /**
+     * @return position after the first NL in the bytes from, to of the log, or -1 if there is none.
+     */
+    private static long findFirstLineEnd(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buffer = read(channel, from, to);
+        for (int i=0; i<buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') return from + i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return position after the last NL in the bytes from, to of the log, or -1 if there is none.
+     */
+    private static long findLastLineEnd(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buffer = read(channel, from, to);
+        for (int i=buffer.limit()-1; i>=0; i--) {
+            if (buffer.get(i) == '\n') return from + i + 1;
+        }
+        return -1;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, to - from));
+        while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) > 0) {
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void truncate(File file, FileChannel channel, long length) throws IOException {
+        LOG.log(Level.WARNING, "last line of "+file+" is not complete and will be removed, length="+(channel.size() - length));
+        channel.truncate(length);
+        channel.force(true);
+    }
+
+    /**
+     * Parses the chunks lo to hi of the log, splitting them between two tasks until there is one chunk.
+     */
+    private static class ReplayTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int lo;
+        private final int hi;
+        private final WordBitSet set;
+        private final int requiredDigits;
+        private final int base;
+
+        ReplayTask(File file, FileChannel channel, long[] bounds, int lo, int hi, WordBitSet set, int requiredDigits, int base) {
+            this.file = file;
+            this.channel = channel;
+            this.bounds = bounds;
+            this.lo = lo;
+            this.hi = hi;
+            this.set = set;
+            this.requiredDigits = requiredDigits;
+            this.base = base;
+        }
+
+        @Override
+        protected Long compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                ReplayTask left = new ReplayTask(file, channel, bounds, lo, mid, set, requiredDigits, base);
+                left.fork();
+                long right = new ReplayTask(file, channel, bounds, mid, hi, set, requiredDigits, base).compute();
+                return left.join() + right;
+            }
+            try {
+                return parseChunk();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private long parseChunk() throws IOException {
+            final long start = bounds[lo];
+            final long end = bounds[hi];
+            final long[] count = new long[1];
+            final String[] invalid = new String[1];
+            NumberParser parser = new NumberParser(requiredDigits, requiredDigits + 1) {
+                @Override
+                protected void onNumbers(int[] numbers, int cnt) {
+                    for (int i=0; i<cnt; i++) set.addShared(numbers[i] - base);
+                    count[0] += cnt;
+                }
+
+                @Override
+                protected void onLine(String text) {
+                    invalid[0] = text;
+                }
+            };
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            if (!parser.parse(buffer)) {
+                throw new IOException("invalid line in "+file+" before position "+(start + buffer.position())+", text="+invalid[0]);
+            }
+            return count[0];
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.challenge;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Manifest that lists the segment files of a segmented numbers.log, and a reader for all of the segments.
+ *
+ * The manifest is a text file with one line per segment, holding the path of the segment file.
+ * Each unique number is written to exactly one segment, so reading all segments listed in the manifest
+ * gives the same de-duplicated set as a single numbers.log.
+ *
+ * Can be run to print all numbers from all segments to standard output:
+ *     java -cp challenge-1.0.0.jar com.challenge.NumberLogSegments numbers.log.manifest
+ */
+public class NumberLogSegments {
+
+    /** suffix added to the log file name for the manifest */
+    public static final String ManifestSuffix = ".manifest";
+
+    private NumberLogSegments() {
+    }
+
+    /**
+     * @return manifest file for a log file, for example numbers.log.manifest.
+     */
+    public static File getManifest(File fileLog) {
+        return new File(fileLog.getPath() + ManifestSuffix);
+    }
+
+    /**
+     * Read the segment files listed in the manifest.
+     * @return empty list if the manifest does not exist.
+     */
+    public static List<File> readManifest(File manifest) throws IOException {
+        List<File> list = new ArrayList<>();
+        if (!manifest.exists()) return list;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                line = line.trim();
+                if (line.length() > 0) list.add(new File(line));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Replace the manifest with a new list of segment files.
+     * A new file is written and then renamed, so a reader never sees a partial manifest.
+     */
+    public static void writeManifest(File manifest, List<File> segments) throws IOException {
+        File tmp = new File(manifest.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+            for (File file : segments) {
+                writer.write(file.getPath());
+                writer.write('\n');
+            }
+            writer.flush();
+            fos.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return total length in bytes of all segments listed in the manifest.
+     */
+    public static long getLength(File manifest) throws IOException {
+        long length = 0;
+        for (File file : readManifest(manifest)) length += file.length();
+        return length;
+    }
+
+    /**
+     * Read every number from every segment listed in the manifest.  A segment (or shard file) written with
+     * log=gzip is decompressed.
+     * @param parser parser that is passed all bytes of all segments, each segment ends with a complete line.
+     * @throws IOException if a segment contains a line that is not a valid number.
+     */
+    public static void read(File manifest, NumberParser parser) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        for (File file : readManifest(manifest)) {
+            if (isGzip(file)) {
+                readGzip(file, parser);
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                for (;;) {
+                    buffer.clear();
+                    if (channel.read(buffer) < 0) break;
+                    buffer.flip();
+                    if (!parser.parse(buffer)) throw new IOException("invalid line in "+file);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the file starts with the gzip magic bytes, as written by GzipNumberWriter.
+     */
+    public static boolean isGzip(File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            return is.read() == 0x1f && is.read() == 0x8b;
+        }
+    }
+
+    /**
+     * Read every number from a gzip file, of one or more members.
+     */
+    public static void readGzip(File file, NumberParser parser) throws IOException {
+        byte[] bytes = new byte[1 << 20];
+        try (InputStream is = new GZIPInputStream(new FileInputStream(file), 1 << 16)) {
+            for (int n; (n = is.read(bytes)) >= 0; ) {
+                if (!parser.parse(ByteBuffer.wrap(bytes, 0, n))) throw new IOException("invalid line in "+file);
+            }
+        }
+    }
+
+    /**
+     * Print all numbers from all segments listed in the manifest.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: NumberLogSegments <manifest>");
+            System.exit(1);
+        }
+        final PrintStream out = new PrintStream(new FileOutputStream(java.io.FileDescriptor.out), false);
+        final char[] digits = new char[ServerController.requiredDigits];
+        read(new File(args[0]), new NumberParser(ServerController.requiredDigits, ServerController.requiredDigits + 1) {
+            @Override
+            protected void onNumbers(int[] numbers, int count) {
+                for (int i=0; i<count; i++) {
+                    PrintNumberWriter.formatDigits(numbers[i], digits);
+                    out.println(digits);
+                }
+            }
+
+            @Override
+            protected void onLine(String text) {
+            }
+        });
+        out.flush();
+    }
+}
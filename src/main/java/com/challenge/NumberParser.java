@@ -0,0 +1,172 @@
+package com.challenge;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses NL terminated numbers directly from the bytes read from a client connection.
+ *
+ * Valid numbers are converted to int without creating a String, and are passed on in batches.
+ * A line of 9 digits is validated and converted 8 bytes at a time, using arithmetic on a long
+ * (SWAR, SIMD within a register).  Lines that are split across reads are kept until the rest of the
+ * line is received.  Only ASCII digits are valid.
+ *
+ * Any line that is not a valid number (including "terminate") is passed on as a String, and parsing
+ * stops, as the connection will be closed.
+ *
+ * One instance is used for each connection, it is not thread safe.
+ */
+public abstract class NumberParser {
+
+    /** number of values passed on in one call to onNumbers */
+    public static final int BatchSize = 512;
+
+    /** high nibble of each byte, used for digit validation */
+    private static final long HighNibbles = 0xF0F0F0F0F0F0F0F0L;
+    /** ascii '0' in each byte */
+    private static final long Zeros = 0x3030303030303030L;
+
+    private final int requiredDigits;
+
+    /** numbers parsed but not yet passed on */
+    private final int[] batch = new int[BatchSize];
+    private int batchCount;
+
+    /** bytes of the current line that have not been terminated yet */
+    private final byte[] line;
+    private int lineLength;
+
+    /**
+     * Create a parser.
+     * @param requiredDigits number of digits required for a valid number, 1 to 9.
+     * @param maxLineLength longest line that can be valid, longer lines are passed on as invalid without waiting for NL.
+     */
+    public NumberParser(int requiredDigits, int maxLineLength) {
+        if (requiredDigits < 1 || requiredDigits > 9) throw new IllegalArgumentException("requiredDigits must be 1 to 9");
+        this.requiredDigits = requiredDigits;
+        this.line = new byte[Math.max(requiredDigits, maxLineLength) + 1];
+    }
+
+    /**
+     * Parse all bytes from position to limit of the buffer, the buffer byte order is set to little endian.
+     * Numbers are passed on before returning, so the buffer can be reused.
+     * @return false if a line that is not a valid number was read, and the rest of the buffer was not parsed.
+     */
+    public boolean parse(ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int pos = buffer.position();
+        final int limit = buffer.limit();
+        final boolean bFast = (requiredDigits == 9);
+
+        while (pos < limit) {
+            // fast path, a complete line of 9 digits + NL
+            if (bFast && lineLength == 0 && limit - pos >= 10 && buffer.get(pos+9) == '\n') {
+                long w = buffer.getLong(pos);
+                int d = buffer.get(pos+8) - '0';
+                if (isDigits8(w) && d >= 0 && d <= 9) {
+                    batch[batchCount++] = parseDigits8(w) * 10 + d;
+                    if (batchCount == BatchSize) flush();
+                    pos += 10;
+                    continue;
+                }
+            }
+
+            byte b = buffer.get(pos++);
+            if (b == '\n') {
+                if (!onEndOfLine()) {
+                    buffer.position(pos);
+                    return false;
+                }
+            }
+            else {
+                line[lineLength++] = b;
+                if (lineLength == line.length) {
+                    // can not be a valid line, no need to wait for the rest of it
+                    flush();
+                    lineLength = 0;
+                    buffer.position(pos);
+                    onLine(new String(line, StandardCharsets.US_ASCII));
+                    return false;
+                }
+            }
+        }
+        buffer.position(pos);
+        flush();
+        return true;
+    }
+
+    /**
+     * Called for a line that was split across reads, or is not in the fast path format.
+     */
+    private boolean onEndOfLine() {
+        int len = lineLength;
+        lineLength = 0;
+        if (len > 0 && line[len-1] == '\r') len--;
+
+        if (len == requiredDigits) {
+            int x = 0;
+            int i = 0;
+            for (; i<len; i++) {
+                int d = line[i] - '0';
+                if (d < 0 || d > 9) break;
+                x = x * 10 + d;
+            }
+            if (i == len) {
+                batch[batchCount++] = x;
+                if (batchCount == BatchSize) flush();
+                return true;
+            }
+        }
+        flush();
+        onLine(new String(line, 0, len, StandardCharsets.US_ASCII));
+        return false;
+    }
+
+    /**
+     * @return number of bytes of a line that has been started, but has not been terminated with NL.
+     */
+    public int getPartialLength() {
+        return lineLength;
+    }
+
+    /**
+     * Pass on any numbers that have been parsed.
+     */
+    private void flush() {
+        if (batchCount == 0) return;
+        int n = batchCount;
+        batchCount = 0;
+        onNumbers(batch, n);
+    }
+
+    /**
+     * Check that all 8 bytes are ascii digits.
+     * For each byte the high nibble must be 3, and adding 6 must not change the high nibble.
+     */
+    static boolean isDigits8(long w) {
+        return ((w & HighNibbles) | (((w + 0x0606060606060606L) & HighNibbles) >>> 4)) == 0x3333333333333333L;
+    }
+
+    /**
+     * Convert 8 ascii digits (first digit in the low byte) to int, by combining pairs of digits,
+     * then pairs of 2 digit values, and then pairs of 4 digit values.
+     */
+    static int parseDigits8(long w) {
+        w -= Zeros;
+        w = (w * 10) + (w >>> 8);
+        w = (((w & 0x000000FF000000FFL) * (100 + (1000000L << 32)))
+            + (((w >>> 16) & 0x000000FF000000FFL) * (1 + (10000L << 32)))) >>> 32;
+        return (int) w;
+    }
+
+    /**
+     * Called with valid numbers, the array is reused after this returns.
+     */
+    protected abstract void onNumbers(int[] numbers, int count);
+
+    /**
+     * Called with a line that is not a valid number, parse will return without reading the rest of the buffer.
+     */
+    protected abstract void onLine(String text);
+}
@@ -0,0 +1,18 @@
+package com.challenge;
+
+/**
+ * Set of numbers used to determine if a number has already been received.
+ */
+public interface NumberSet {
+
+    /**
+     * Add the number to the set.
+     * @return true if the number was not already in the set.
+     */
+    boolean add(int x);
+
+    /**
+     * @return true if the number is in the set.
+     */
+    boolean contains(int x);
+}
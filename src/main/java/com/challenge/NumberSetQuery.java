@@ -0,0 +1,29 @@
+package com.challenge;
+
+/**
+ * Queries of a NumberSet that any thread can run while the dedup thread adds numbers.
+ *
+ * A query only reads, each 64 bit word once with acquire ordering, and never locks, writes or uses compare and set,
+ * so the thread adding numbers is never blocked.  Numbers are only ever added, so a query sees every number added
+ * before it started, and may see numbers added while it runs.  Each word is a snapshot, so a count and a list over
+ * the same range agree unless numbers were added between them.
+ */
+public interface NumberSetQuery {
+
+    /**
+     * @return true if the number has been added.
+     */
+    boolean isSeen(int x);
+
+    /**
+     * @return number of numbers from, to (inclusive) that have been added, 0 if to is less than from.
+     */
+    long count(int from, int to);
+
+    /**
+     * Copy the numbers from, to (inclusive) that have been added, in ascending order, until the array is full.
+     * To continue, call again with from set to one more than the last number copied.
+     * @return number of numbers copied, less than the array length only when the range has no more.
+     */
+    int list(int from, int to, int[] numbers);
+}
@@ -0,0 +1,34 @@
+package com.challenge;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes unique numbers to the log file, one number per line with leading zeros.
+ *
+ * Only used by the logger thread, implementations do not need to be thread safe.
+ */
+public interface NumberWriter extends Closeable {
+
+    /**
+     * Write numbers, which may be buffered until flush or close.
+     * @param numbers array that can be reused after this returns.
+     */
+    void write(int[] numbers, int count) throws IOException;
+
+    /**
+     * Pass any buffered numbers on to the file.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Write any buffered numbers and force them to disk, returns after all numbers written so far are durable.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Write any buffered numbers and close the file.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,346 @@
+package com.challenge;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * NumberSet that allocates memory only for the ranges of numbers it holds, similar to a Roaring bitmap.
+ *
+ * Keys are split into pages of 65536 numbers.  A page is created when the first number in its range is added, and
+ * holds its numbers as a sorted array of the low 16 bits until it has ArrayMax numbers, and then as a bitmap of 1024
+ * words (8 KB), so a page never uses more than a bitmap would.  Pages are found in one table indexed by the high
+ * bits of the key, which for 9 digits has 15,259 entries.
+ *
+ * A set that sees only a few thousand numbers uses a few hundred KB instead of the 125 MB of a dense bitset for 9
+ * digits.  When most pages are bitmaps, memory is close to a dense bitset.
+ *
+ * Keys are ints, as the server parses, queues and logs numbers of at most 9 digits as ints.
+ *
+ * Only a single thread can add keys, any thread can run queries (see NumberSetQuery) while keys are added.  A new
+ * page, a grown array or a bitmap replaces the page with a release store, and words of a bitmap are written with
+ * release ordering, so queries that read them with acquire ordering see a page or bit only after it is complete.
+ * An insert into an array that has room is made in place, inside a version of the page that is odd while it is
+ * changed (a seqlock): queries of an array read the version before and after, and read the page again if it changed.
+ */
+public class PagedBitSet implements NumberSet, NumberSetQuery {
+
+    /** number of low bits of a key held in a page */
+    private static final int PageBits = 16;
+    /**
+     * Max numbers in the array of a page, more than this uses a bitmap.  Lower than the 4096 where the array would
+     * be the same size as the bitmap, as inserts into a large sorted array cost more than the memory saved.
+     */
+    static final int ArrayMax = 1024;
+    private static final int ArrayInitial = 4;
+
+    private static final VarHandle Pages = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle Words = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle Versions = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final int maxValue;
+    /**
+     * Pages, each is null, a char array (count in element 0, then the sorted low 16 bits of its numbers) or a bitmap
+     * of longs.  There is no object for a page, so a lookup does not follow another reference.
+     */
+    private final Object[] pages;
+    /** version of each page, odd while an insert changes its array in place */
+    private final int[] versions;
+
+    private int cntPage;
+    private int cntBitmap;
+    private long cntValue;
+
+    /**
+     * Create a set for keys 0 to maxValue, nothing is allocated for pages until keys are added.
+     */
+    public PagedBitSet(int maxValue) {
+        if (maxValue < 0) throw new IllegalArgumentException("invalid maxValue="+maxValue);
+        this.maxValue = maxValue;
+        this.pages = new Object[(maxValue >>> PageBits) + 1];
+        this.versions = new int[pages.length];
+    }
+
+    public int getMaxValue() {
+        return this.maxValue;
+    }
+
+    /**
+     * Add the key to the set.
+     * @return true if the key was not already in the set.
+     * @throws IllegalArgumentException if the key is less than 0 or more than maxValue.
+     */
+    @Override
+    public boolean add(int x) {
+        if (x < 0 || x > maxValue) throw new IllegalArgumentException("key out of range, x="+x+", maxValue="+maxValue);
+        final int ix = x >>> PageBits;
+        final char lo = (char) x;
+        Object page = pages[ix];
+        if (page instanceof long[]) {
+            long[] bits = (long[]) page;
+            final long mask = 1L << lo;
+            final long word = bits[lo >>> 6];
+            if ((word & mask) != 0) return false;
+            Words.setRelease(bits, lo >>> 6, word | mask);
+            cntValue++;
+            return true;
+        }
+        char[] values = (char[]) page;
+        if (values == null) {
+            values = new char[ArrayInitial + 1];
+            values[0] = 1;
+            values[1] = lo;
+            Pages.setRelease(pages, ix, values);
+            cntPage++;
+            cntValue++;
+            return true;
+        }
+        final int count = values[0];
+        int i = Arrays.binarySearch(values, 1, count + 1, lo);
+        if (i >= 0) return false;
+        i = -i - 1;
+        if (count == ArrayMax) {
+            long[] bits = toBitmap(values);
+            bits[lo >>> 6] |= 1L << lo;
+            Pages.setRelease(pages, ix, bits);
+        }
+        else if (count + 1 == values.length) {
+            // the array queries may be reading is not changed, the grown copy replaces it
+            char[] grown = new char[Math.min(ArrayMax, count << 1) + 1];
+            System.arraycopy(values, 0, grown, 0, i);
+            grown[i] = lo;
+            System.arraycopy(values, i, grown, i + 1, count + 1 - i);
+            grown[0] = (char) (count + 1);
+            Pages.setRelease(pages, ix, grown);
+        }
+        else {
+            final int version = versions[ix];
+            Versions.setOpaque(versions, ix, version + 1);
+            VarHandle.storeStoreFence();
+            System.arraycopy(values, i, values, i + 1, count + 1 - i);
+            values[i] = lo;
+            values[0] = (char) (count + 1);
+            Versions.setRelease(versions, ix, version + 2);
+        }
+        cntValue++;
+        return true;
+    }
+
+    /**
+     * @return true if the key is in the set, false for a key out of range.
+     */
+    @Override
+    public boolean contains(int x) {
+        if (x < 0 || x > maxValue) return false;
+        Object page = pages[x >>> PageBits];
+        final char lo = (char) x;
+        if (page instanceof long[]) return (((long[]) page)[lo >>> 6] & (1L << lo)) != 0;
+        if (page == null) return false;
+        char[] values = (char[]) page;
+        return Arrays.binarySearch(values, 1, values[0] + 1, lo) >= 0;
+    }
+
+    /**
+     * Convert a page from an array to a bitmap.
+     */
+    private long[] toBitmap(char[] values) {
+        long[] bits = new long[1 << (PageBits - 6)];
+        for (int i=1, n=values[0]; i<=n; i++) {
+            char lo = values[i];
+            bits[lo >>> 6] |= 1L << lo;
+        }
+        cntBitmap++;
+        return bits;
+    }
+
+    /**
+     * @return page p (key >>> PageBits), read with acquire ordering, null if it has no keys, can be called by any
+     * thread.
+     */
+    private Object getPageAcquire(int p) {
+        return Pages.getAcquire(pages, p);
+    }
+
+    /**
+     * @return version of page p read with acquire ordering, waits while an insert is changing its array.
+     */
+    private int getVersionAcquire(int p) {
+        int version;
+        while (((version = (int) Versions.getAcquire(versions, p)) & 1) != 0) {
+            Thread.onSpinWait();
+        }
+        return version;
+    }
+
+    /**
+     * @return true if page p was not changed in place since its version was read, so what was read from its array
+     * is consistent.
+     */
+    private boolean isVersion(int p, int version) {
+        VarHandle.loadLoadFence();
+        return (int) Versions.getOpaque(versions, p) == version;
+    }
+
+    /**
+     * @return count of an array read by a query, at most its length, as an insert may be changing it.
+     */
+    private static int getCount(char[] values) {
+        return Math.min(values[0], values.length - 1);
+    }
+
+    @Override
+    public boolean isSeen(int x) {
+        if (x < 0 || x > maxValue) return false;
+        final int p = x >>> PageBits;
+        final char lo = (char) x;
+        while (true) {
+            final int version = getVersionAcquire(p);
+            Object page = getPageAcquire(p);
+            if (page instanceof long[]) return ((long) Words.getAcquire((long[]) page, lo >>> 6) & (1L << lo)) != 0;
+            if (page == null) return false;
+            char[] values = (char[]) page;
+            boolean bSeen = Arrays.binarySearch(values, 1, getCount(values) + 1, lo) >= 0;
+            if (isVersion(p, version)) return bSeen;
+        }
+    }
+
+    @Override
+    public long count(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(maxValue, to);
+        if (to < from) return 0;
+        long cnt = 0;
+        for (int p=from>>>PageBits, pTo=to>>>PageBits; p<=pTo; p++) {
+            // range of low bits in this page
+            final int lo = (p == from >>> PageBits) ? from & 0xFFFF : 0;
+            final int hi = (p == pTo) ? to & 0xFFFF : 0xFFFF;
+            while (true) {
+                final int version = getVersionAcquire(p);
+                Object page = getPageAcquire(p);
+                if (page == null) break;
+                if (page instanceof long[]) {
+                    cnt += countBits((long[]) page, lo, hi);
+                    break;
+                }
+                char[] values = (char[]) page;
+                final int count = getCount(values);
+                final int n = lowerBound(values, count, hi + 1) - lowerBound(values, count, lo);
+                if (isVersion(p, version)) {
+                    cnt += n;
+                    break;
+                }
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * @return number of bits from lo to hi (inclusive) set in a bitmap, using popcount over its words.
+     */
+    private static long countBits(long[] bits, int lo, int hi) {
+        final int ixFrom = lo >>> 6;
+        final int ixTo = hi >>> 6;
+        // masks for the bits of the first and last word that are in the range, shifts use the low 6 bits
+        final long maskFrom = -1L << lo;
+        final long maskTo = -1L >>> (63 - (hi & 63));
+        if (ixFrom == ixTo) return Long.bitCount((long) Words.getAcquire(bits, ixFrom) & maskFrom & maskTo);
+        long cnt = Long.bitCount((long) Words.getAcquire(bits, ixFrom) & maskFrom);
+        for (int ix=ixFrom+1; ix<ixTo; ix++) {
+            cnt += Long.bitCount((long) Words.getAcquire(bits, ix));
+        }
+        return cnt + Long.bitCount((long) Words.getAcquire(bits, ixTo) & maskTo);
+    }
+
+    /**
+     * @return index of the first of count values (from element 1) that is at least key, or count + 1 if there is none.
+     */
+    private static int lowerBound(char[] values, int count, int key) {
+        int lo = 1;
+        int hi = count + 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    @Override
+    public int list(int from, int to, int[] numbers) {
+        from = Math.max(0, from);
+        to = Math.min(maxValue, to);
+        if (to < from) return 0;
+        int cnt = 0;
+        for (int p=from>>>PageBits, pTo=to>>>PageBits; p<=pTo && cnt<numbers.length; p++) {
+            final int base = p << PageBits;
+            final int lo = (p == from >>> PageBits) ? from & 0xFFFF : 0;
+            final int hi = (p == pTo) ? to & 0xFFFF : 0xFFFF;
+            while (true) {
+                final int version = getVersionAcquire(p);
+                Object page = getPageAcquire(p);
+                if (page == null) break;
+                if (page instanceof long[]) {
+                    cnt = listBits((long[]) page, lo, hi, base, numbers, cnt);
+                    break;
+                }
+                char[] values = (char[]) page;
+                final int count = getCount(values);
+                int n = cnt;
+                for (int i=lowerBound(values, count, lo); i<=count && values[i] <= hi && n<numbers.length; i++) {
+                    numbers[n++] = base + values[i];
+                }
+                // numbers copied from an array that was changed are copied again
+                if (isVersion(p, version)) {
+                    cnt = n;
+                    break;
+                }
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * Copy the numbers of the bits from lo to hi (inclusive) set in a bitmap, until the array is full.
+     * @return cnt plus the number of numbers copied.
+     */
+    private static int listBits(long[] bits, int lo, int hi, int base, int[] numbers, int cnt) {
+        final int ixTo = hi >>> 6;
+        long word = (long) Words.getAcquire(bits, lo >>> 6) & (-1L << lo);
+        for (int ix=lo>>>6; ; ) {
+            if (ix == ixTo) word &= -1L >>> (63 - (hi & 63));
+            while (word != 0 && cnt < numbers.length) {
+                numbers[cnt++] = base + (ix << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+            if (cnt == numbers.length || ix == ixTo) return cnt;
+            word = (long) Words.getAcquire(bits, ++ix);
+        }
+    }
+
+    /** @return number of keys in the set. */
+    public long size() {
+        return cntValue;
+    }
+
+    /** @return number of pages, each for a range of 65536 keys. */
+    public int getPageCount() {
+        return cntPage;
+    }
+
+    /** @return number of pages that hold their keys as a bitmap. */
+    public int getBitmapCount() {
+        return cntBitmap;
+    }
+
+    /**
+     * @return estimate of the memory used, for the table and versions of pages, and the arrays or bitmaps of pages.
+     */
+    public long getMemoryBytes() {
+        long bytes = 32 + ((long) pages.length << 3);
+        bytes += (long) cntBitmap * (16 + (1024 << 3));
+        for (Object page : pages) {
+            if (page instanceof char[]) bytes += 16 + (((char[]) page).length << 1);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,69 @@
+package com.challenge;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * NumberWriter using a PrintWriter, which uses an 8192 char buffer and the platform newline.
+ */
+public class PrintNumberWriter implements NumberWriter {
+
+    private final FileOutputStream fos;
+    private final PrintWriter writer;
+    private final char[] digits;
+
+    /**
+     * Create a writer for the file.
+     * @param append true to add to an existing file, otherwise it is created new.
+     * @param requiredDigits number of digits written for each number.
+     */
+    public PrintNumberWriter(File file, boolean append, int requiredDigits) throws IOException {
+        // does not incude auto flushing on newline
+        this.fos = new FileOutputStream(file, append);
+        this.writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(fos)));
+        this.digits = new char[requiredDigits];
+    }
+
+    @Override
+    public void write(int[] numbers, int count) throws IOException {
+        for (int i=0; i<count; i++) {
+            formatDigits(numbers[i], digits);
+            writer.write(digits);
+            writer.println();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+        if (writer.checkError()) throw new IOException("error writing to log");
+    }
+
+    @Override
+    public void sync() throws IOException {
+        flush();
+        fos.getChannel().force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.flush();
+        boolean bError = writer.checkError();
+        writer.close();
+        if (bError) throw new IOException("error writing to log");
+    }
+
+    /**
+     * Format number with leading zeros, using all of the digits array.
+     */
+    static void formatDigits(int x, char[] digits) {
+        for (int i=digits.length-1; i>=0; i--) {
+            digits[i] = (char) ('0' + (x % 10));
+            x /= 10;
+        }
+    }
+}
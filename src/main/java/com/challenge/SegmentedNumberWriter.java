@@ -0,0 +1,226 @@
+package com.challenge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * NumberWriter that splits numbers.log into segment files, written in parallel by several writer threads.
+ *
+ * Each writer thread owns one open segment at a time, and starts a new segment when the current one has reached
+ * the max number of records.  Batches from the logger thread are passed to the writer threads in turn, using a ring
+ * buffer for each.  Segments are named numbers.log.00000, numbers.log.00001, etc, and can be spread across several
+ * directories (for example on different disks).  All segments are listed in numbers.log.manifest, which is
+ * rewritten each time a segment is started.
+ */
+public class SegmentedNumberWriter implements NumberWriter {
+    private static Logger LOG = Logger.getLogger(SegmentedNumberWriter.class.getName());
+
+    private static final long PollNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final File fileLog;
+    private final File manifest;
+    private final File[] dirs;
+    private final int requiredDigits;
+    private final long maxRecords;
+
+    /** all segments, in the order they were started */
+    private final List<File> listSegment = new ArrayList<>();
+
+    private final SegmentThread[] segmentThreads;
+    private int nextThread;
+
+    /** exception from a writer thread, reported to the logger thread by the next call */
+    private volatile IOException ioException;
+
+    /**
+     * Create the writer, and start the writer threads.
+     * @param fileLog name of the log, used for the manifest and segment names.
+     * @param append true to keep existing segments listed in the manifest, otherwise they are deleted.
+     * @param requiredDigits number of digits written for each number.
+     * @param threads number of writer threads, each with its own open segment.
+     * @param maxRecords max number of numbers in one segment.
+     * @param dirs directories for segments, used in turn by the writer threads, null to use the directory of the log.
+     */
+    public SegmentedNumberWriter(File fileLog, boolean append, int requiredDigits, int threads, long maxRecords, File[] dirs) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        if (maxRecords < 1) throw new IllegalArgumentException("maxRecords must be at least 1");
+        this.fileLog = fileLog;
+        this.manifest = NumberLogSegments.getManifest(fileLog);
+        this.requiredDigits = requiredDigits;
+        this.maxRecords = maxRecords;
+        this.dirs = (dirs != null && dirs.length > 0) ? dirs : new File[] { fileLog.getAbsoluteFile().getParentFile() };
+
+        List<File> listOld = NumberLogSegments.readManifest(manifest);
+        if (append) {
+            listSegment.addAll(listOld);
+        }
+        else {
+            for (File file : listOld) {
+                if (file.exists() && !file.delete()) throw new IOException("can not delete old segment "+file);
+            }
+        }
+        NumberLogSegments.writeManifest(manifest, listSegment);
+
+        segmentThreads = new SegmentThread[threads];
+        for (int i=0; i<threads; i++) {
+            segmentThreads[i] = new SegmentThread(i, this.dirs[i % this.dirs.length]);
+        }
+        for (SegmentThread st : segmentThreads) st.start();
+    }
+
+    /**
+     * Start a new segment, and add it to the manifest.  Called by the writer threads.
+     */
+    private synchronized File newSegment(File dir) throws IOException {
+        File file = new File(dir, String.format("%s.%05d", fileLog.getName(), listSegment.size()));
+        listSegment.add(file);
+        NumberLogSegments.writeManifest(manifest, listSegment);
+        LOG.log(Level.FINE, "new log segment "+file);
+        return file;
+    }
+
+    /**
+     * Pass the batch to the next writer thread.
+     */
+    @Override
+    public void write(int[] numbers, int count) throws IOException {
+        checkException();
+        SegmentThread st = segmentThreads[nextThread];
+        nextThread = (nextThread + 1) % segmentThreads.length;
+        st.queNumber.publish(numbers, 0, count);
+    }
+
+    /**
+     * Writer threads flush whenever their queue is empty, so this only reports errors.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkException();
+    }
+
+    /**
+     * Ask every writer thread to force its segment after writing all numbers passed to it, and wait for them.
+     */
+    @Override
+    public void sync() throws IOException {
+        for (SegmentThread st : segmentThreads) st.requestSync();
+        for (SegmentThread st : segmentThreads) st.awaitSync();
+        checkException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SegmentThread st : segmentThreads) st.abStart.set(false);
+        for (SegmentThread st : segmentThreads) {
+            try {
+                st.thread.join();
+            }
+            catch (InterruptedException e) {
+                throw new IOException("interrupted while closing log segments", e);
+            }
+        }
+        checkException();
+    }
+
+    private void checkException() throws IOException {
+        IOException e = ioException;
+        if (e != null) throw new IOException("error writing log segment", e);
+    }
+
+    /**
+     * Writer thread that owns one open segment at a time.
+     */
+    private class SegmentThread implements Runnable {
+        private final int id;
+        private final File dir;
+        private final IntRingBuffer queNumber = new IntRingBuffer(1 << 16);
+        private final AtomicBoolean abStart = new AtomicBoolean(true);
+        private final Thread thread;
+
+        /** sync requests from the logger thread, and the last request completed by this thread */
+        private volatile long syncRequested;
+        private volatile long syncCompleted;
+
+        private NumberWriter writer;
+        private long records;
+
+        SegmentThread(int id, File dir) {
+            this.id = id;
+            this.dir = dir;
+            this.thread = new Thread(this, "SegmentedNumberWriter."+id);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void requestSync() {
+            syncRequested++;
+        }
+
+        void awaitSync() throws IOException {
+            final long request = syncRequested;
+            while (syncCompleted < request) {
+                if (!thread.isAlive()) throw new IOException("log segment thread has stopped");
+                Thread.yield();
+            }
+        }
+
+        @Override
+        public void run() {
+            final int[] numbers = new int[4096];
+            try {
+                for (;;) {
+                    // read the request first, so all numbers passed before it are drained before it is completed
+                    long request = syncRequested;
+                    int n = queNumber.drain(numbers);
+                    if (n > 0) {
+                        write(numbers, n);
+                        continue;
+                    }
+                    if (request > syncCompleted) {
+                        if (writer != null) writer.sync();
+                        syncCompleted = request;
+                        continue;
+                    }
+                    if (!abStart.get() && queNumber.size() == 0) break;
+                    if (writer != null) writer.flush();
+                    n = queNumber.drain(numbers, PollNanos);
+                    if (n > 0) write(numbers, n);
+                }
+                if (writer != null) writer.close();
+            }
+            catch (IOException e) {
+                LOG.log(Level.WARNING, "exception while writing log segment, thread "+id+" will discard numbers", e);
+                ioException = e;
+                // keep draining so the logger thread is not blocked, it will report the exception
+                while (abStart.get() || queNumber.size() > 0) queNumber.drain(numbers, PollNanos);
+                syncCompleted = Long.MAX_VALUE;
+            }
+        }
+
+        private void write(int[] numbers, int n) throws IOException {
+            int off = 0;
+            while (off < n) {
+                if (writer == null || records == maxRecords) {
+                    if (writer != null) writer.close();
+                    writer = new ChannelNumberWriter(newSegment(dir), false, requiredDigits);
+                    records = 0;
+                }
+                int cnt = (int) Math.min(n - off, maxRecords - records);
+                // rest of the batch is moved to the start of the array, after a new segment
+                if (off > 0) System.arraycopy(numbers, off, numbers, 0, cnt);
+                writer.write(numbers, cnt);
+                records += cnt;
+                off += cnt;
+            }
+        }
+    }
+}
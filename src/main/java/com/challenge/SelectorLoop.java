@@ -0,0 +1,178 @@
+package com.challenge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single thread that services reads for many non-blocking client connections using a Selector.
+ *
+ * ServerSocketController creates a small fixed number of these, and assigns each new connection to one of them.
+ * Each loop owns one direct buffer that is reused for every read, so there is no allocation per read.
+ *
+ * A readable connection whose reads are paused for backpressure is not read, its interest in reads is removed
+ * until the pause ends, so TCP flow control makes the client wait.  While any connection is paused, select
+ * times out every PauseMillis to check if it can be resumed.
+ */
+public class SelectorLoop {
+    private static Logger LOG = Logger.getLogger(SelectorLoop.class.getName());
+
+    /** size of the direct buffer used for reading from client channels */
+    public static final int BufferSize = 64 * 1024;
+
+    private final int id;
+    private final Selector selector;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BufferSize);
+    private final AtomicBoolean abStart = new AtomicBoolean();
+    private Thread thread;
+
+    /** max time to wait in select while connections are paused */
+    private static final long PauseMillis = 1;
+
+    /** connections with reads paused, only used by the loop thread */
+    private final ArrayList<ChannelController> listPaused = new ArrayList<>();
+
+    /** connections waiting to be registered by the loop thread */
+    private final ConcurrentLinkedQueue<ChannelController> queRegister = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Create a selector loop.
+     * @param id identifier used for the thread name.
+     */
+    public SelectorLoop(int id) throws IOException {
+        this.id = id;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Start the thread that services this selector.
+     */
+    public void start() {
+        if (!abStart.compareAndSet(false, true)) return;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long msLastError = 0;
+                for ( ;abStart.get(); ) {
+                    try {
+                        if (listPaused.isEmpty()) selector.select();
+                        else selector.select(PauseMillis);
+                        registerPending();
+                        processSelected();
+                        resumePaused();
+                    }
+                    catch (Exception e) {
+                        long ms = System.currentTimeMillis();
+                        if (ms > msLastError + 5000 && abStart.get()) {
+                            LOG.log(Level.WARNING, "exception in selector loop, will continue", e);
+                            msLastError = ms;
+                        }
+                    }
+                }
+                try {
+                    selector.close();
+                }
+                catch (IOException e) {
+                    LOG.log(Level.WARNING, "exception while closing selector", e);
+                }
+            }
+        }, "SelectorLoop."+id);
+        thread.setDaemon(true);
+        thread.start();
+        LOG.log(Level.FINE, "started thread "+thread.getName());
+    }
+
+    /**
+     * @return thread that services this selector, null if not started.
+     */
+    public Thread getThread() {
+        return this.thread;
+    }
+
+    /**
+     * Stop the loop thread.  Connections are closed by ServerSocketController.
+     */
+    public void stop() {
+        if (!abStart.compareAndSet(true, false)) return;
+        selector.wakeup();
+    }
+
+    /**
+     * Queue the connection to be registered by the loop thread, registering from another thread
+     * would block while the loop is in select().
+     */
+    void register(ChannelController cc) {
+        queRegister.add(cc);
+        selector.wakeup();
+    }
+
+    private void registerPending() {
+        for (ChannelController cc; (cc = queRegister.poll()) != null; ) {
+            try {
+                cc.getChannel().register(selector, SelectionKey.OP_READ, cc);
+            }
+            catch (IOException e) {
+                cc.onException(e);
+            }
+        }
+    }
+
+    private void processSelected() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            ChannelController cc = (ChannelController) key.attachment();
+            try {
+                if (!key.isReadable()) continue;
+                if (cc.isReadPaused() || !cc.onReadable(buffer)) pause(cc, key);
+            }
+            catch (CancelledKeyException e) {
+                // closed by another thread, for example stop or terminate
+            }
+            catch (IOException e) {
+                key.cancel();
+                cc.onException(e);
+            }
+        }
+    }
+
+    private void pause(ChannelController cc, SelectionKey key) {
+        key.interestOps(0);
+        cc.nsPaused = System.nanoTime();
+        listPaused.add(cc);
+    }
+
+    /**
+     * Restore interest in reads for paused connections, if they are no longer paused.  A connection that was closed
+     * while paused is dropped.
+     */
+    private void resumePaused() {
+        for (int i=listPaused.size()-1; i>=0; i--) {
+            ChannelController cc = listPaused.get(i);
+            SelectionKey key = cc.getChannel().keyFor(selector);
+            if (key != null && key.isValid()) {
+                if (cc.isReadPaused()) continue;
+                try {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                catch (CancelledKeyException e) {
+                    // closed by another thread
+                }
+            }
+            cc.addBackpressure(System.nanoTime() - cc.nsPaused);
+            // order does not matter, so the last one is moved into this slot
+            int last = listPaused.size() - 1;
+            listPaused.set(i, listPaused.get(last));
+            listPaused.remove(last);
+        }
+    }
+}
@@ -2,14 +2,15 @@ package com.challenge;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.BitSet;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.*;
 
 /**
@@ -26,38 +27,170 @@ public class ServerController {
     
     private ServerSocketController controlServerSocket;
     
-    /* best performance
-    private final ArrayBlockingQueue<String> queNumber = new ArrayBlockingQueue<>(80000);
-    private final ArrayBlockingQueue<String> queLog = new ArrayBlockingQueue<>(80000);
-    */
+    /**
+     * Pipelines for ranges of the key space, each with its own queues, set, writer and counters.
+     * There is one shard for all values unless shards is set.
+     */
+    private Shard[] arrShard;
+
+    /**
+     * Number of ranges the key space is split into, each with its own dedup and logger thread.
+     */
+    private int shards = 1;
 
     /**
-     * Queue used for storing new numbers read from client sockets.
+     * Number of values in the range of each shard.
      */
-    private final LinkedBlockingQueue<String> queNumber = new LinkedBlockingQueue<>(100000);
+    private int shardRange;
+
     /**
-     * Queue used for storing new unique numbers that need to be written to numbers.log
+     * Buffers used by each reader thread to split a batch by shard.
      */
-    private final LinkedBlockingQueue<String> queLog = new LinkedBlockingQueue<>(100000);
+    private final ThreadLocal<int[][]> tlShardBatch = new ThreadLocal<>();
+
+    /**
+     * Used to spread batches from client threads across the queues when there is more than one dedup thread.
+     */
+    private final AtomicInteger aiNextQueue = new AtomicInteger();
+
+    /**
+     * Max number of values drained from a queue at one time.
+     */
+    private static final int DrainSize = 1024;
+
+    /**
+     * Max number of values drained from an input queue at one time with dedupBatch, larger blocks give BatchDedup
+     * more numbers in each partition.
+     */
+    private static final int DedupBatchSize = 8192;
+
+    /**
+     * Max time a pipeline thread waits for a queue before checking if stopped.
+     */
+    private static final long PollNanos = TimeUnit.MILLISECONDS.toNanos(100);
     
     /**
-     * Used to determine if a nine-digit number has already been used.
+     * Number of threads that determine if numbers are unique, more than one will share an AtomicBitSet.
+     */
+    private int dedupThreads = 1;
+
+    /**
+     * Number of threads writing numbers.log as segments, 0 to write a single file.
+     */
+    private int logSegments;
+
+    /**
+     * Max number of numbers in one log segment.
      */
-    private BitSet bsNumber;
+    private long logSegmentRecords = 10 * 1000 * 1000;
+
+    /**
+     * Directories for log segments, used in turn by the segment writer threads, null to use the current directory.
+     */
+    private File[] logSegmentDirs;
+
+    /**
+     * True to run the pipeline stages (dedup, logger and reporter) on virtual threads.
+     */
+    private boolean pipelineVirtualThreads;
+
+    /**
+     * Log file for unique numbers, also the base name for log segments.
+     */
+    private File logFile = new File("numbers.log");
+
+    /**
+     * File for a persistent MappedBitSet, null to use a bitset on the heap that is empty at each start.
+     */
+    private File bitSetFile;
+
+    /**
+     * Keep numbers.log at start and rebuild the set on the heap from it, instead of creating the log new.
+     */
+    private boolean resume;
+
+    /**
+     * Max numbers taken from one connection in one turn by the fair scheduler, 0 for readers to add to the input
+     * queues directly.
+     */
+    private int fairQuantum;
+
+    /**
+     * Passes numbers from the staging buffer of each connection on to the input queues in turn, null if not fair.
+     */
+    private FairScheduler scheduler;
+
+    /**
+     * How the dedup threads and the logger threads wait when their queue is empty.
+     */
+    private WaitStrategy dedupWait = WaitStrategy.Default;
+    private WaitStrategy logWait = WaitStrategy.Default;
+
+    /**
+     * Dedup threads add each block drained from the input queue with BatchDedup, instead of each number in turn.
+     */
+    private boolean dedupBatch;
     
     /**
-     * Number of unique numbers received by client connnections.
+     * Number of valid numbers read from client connections.
+     * Counters updated by pipeline threads are striped (LongAdder), so threads do not contend on one cache line.
      */
-    private final AtomicInteger aiNewCount = new AtomicInteger();
+    private final LongAdder adReadCount = new LongAdder();
+
     /**
-     * Number of duplicate numbers received by client connnections.
+     * Latency from reading a batch from a client to flushing or committing it to numbers.log, for sampled batches.
      */
-    private final AtomicInteger aiDupCount = new AtomicInteger();
+    private final LatencyHistogram histLatency = new LatencyHistogram();
+
+    /**
+     * Min time between latency samples, a batch is sampled by attaching the time it was read to it.
+     */
+    private static final long ProbeNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    private volatile long nsLastProbe;
+
+    /**
+     * Metrics registered as an MBean while started.
+     */
+    private final ServerMetrics metrics = new ServerMetrics(this);
+
+    /**
+     * File the metrics are written to every 10 seconds, null to not write them.
+     */
+    private File metricsFile;
     
+    /** log writer using PrintWriter */
+    public static final String LogWriterPrint = "print";
+    /** log writer using FileChannel with double buffering */
+    public static final String LogWriterChannel = "channel";
+    /** log writer compressing blocks in parallel as gzip members, see GzipNumberWriter */
+    public static final String LogWriterGzip = "gzip";
+
+    /** dedup set that allocates all bits at start */
+    public static final String SetDense = "dense";
+    /** dedup set that allocates pages only for ranges with numbers, see PagedBitSet */
+    public static final String SetPaged = "paged";
+
+    /**
+     * Type of set used to determine if numbers are unique, when not using a bitSetFile.
+     */
+    private String setType = SetDense;
+
     /**
-     * buffered writer to write unique numbers to a file.
+     * Type of writer used for numbers.log.
      */
-    private PrintWriter writerLog;
+    private String logWriter = LogWriterPrint;
+
+    /**
+     * Log writer and pipeline thread type used by the current run, resolved from the settings at start, which are
+     * left as they were set when an option can not be used.
+     */
+    private String runLogWriter;
+    private boolean runVirtualThreads;
+
+    /**
+     * Number of threads that compress blocks of numbers.log for each log writer, with LogWriterGzip.
+     */
+    private int logCompressThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
     
     /**
      * Manages state of this controller, for start/stop.
@@ -76,16 +209,69 @@ public class ServerController {
 
     
     /**
-     * These track the number of times that a thread had to wait to add to a queue.
+     * These track the number of times that a thread had to wait to add a batch to a queue.  Readers reserve space
+     * before they parse, so a wait for an input queue means a read was not reserved, and is logged.
+     */
+    private final LongAdder adInputQueueWait = new LongAdder();
+    private volatile long msLastInputWait;
+
+    /**
+     * Number of connections that are sent acks.  While there are any, the logger commits when idle, or flushes at
+     * least every AckFlushNanos if the commit policy does not commit while running.
      */
-    private AtomicInteger aiInputQueueWait = new AtomicInteger();
-    private AtomicInteger aiOutputQueueWait = new AtomicInteger();
+    private final AtomicInteger aiAckClients = new AtomicInteger();
+    private static final long AckFlushNanos = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Percent of the capacity of an input queue above which reads from clients are paused, and below which they
+     * are resumed.  The space above the high watermark holds reads that readers reserved after the last check.
+     */
+    private int highWatermark = 75;
+    private int lowWatermark = 25;
+
+    /**
+     * Number of numbers in an input queue above which reads are paused, and at or below which they are resumed,
+     * calculated from the watermarks at start.
+     */
+    private int inputHigh;
+    private int inputLow;
+
+    /**
+     * True while reads from clients are paused, and the number of times they have been paused.
+     */
+    private volatile boolean bInputPaused;
+    private final LongAdder adInputPause = new LongAdder();
 
     /**
      * used to gracefully shutdown
      */
     private CountDownLatch countDownLatch;
 
+    /**
+     * set by stop after all reader threads have finished, so the dedup threads know no more numbers will be added.
+     */
+    private volatile boolean bInputClosed;
+
+    /**
+     * When numbers.log is forced to disk.
+     */
+    private CommitPolicy commitPolicy = CommitPolicy.None;
+
+    /**
+     * Number of commits of numbers.log, total and max time for each commit.
+     */
+    private final AtomicLong alCommitCount = new AtomicLong();
+    private final AtomicLong alCommitNanos = new AtomicLong();
+    private final AtomicLong alCommitMaxNanos = new AtomicLong();
+
+    /**
+     * Time taken by stop to close connections and drain all queues, -1 until stop completes.
+     */
+    private volatile long msShutdownDrain = -1;
+
+    /** false if stop found the log does not hold all unique numbers, a write failed or the drain timed out */
+    private volatile boolean bLogComplete = true;
+
     
     
     /**
@@ -95,6 +281,467 @@ public class ServerController {
     }
     
     
+    public int getDedupThreads() {
+        return this.dedupThreads;
+    }
+
+    /**
+     * Set the number of threads used to determine if numbers are unique, must be called before start.
+     * With more than one thread, the threads share a lock-free AtomicBitSet and each has its own input queue.
+     * @param dedupThreads default is 1.
+     */
+    public void setDedupThreads(int dedupThreads) {
+        if (dedupThreads < 1) throw new IllegalArgumentException("dedupThreads must be at least 1");
+        this.dedupThreads = dedupThreads;
+    }
+
+
+    public String getLogWriter() {
+        return this.logWriter;
+    }
+
+    /**
+     * Set the type of writer used for numbers.log, must be called before start.
+     * With LogWriterGzip numbers.log is a gzip file, which can not be read at start, so it is not used with a 
+     * bitSetFile or resume, and segments are not compressed, so it is not used with logSegments.
+     * @param logWriter LogWriterPrint (default), LogWriterChannel or LogWriterGzip.
+     */
+    public void setLogWriter(String logWriter) {
+        if (!LogWriterPrint.equals(logWriter) && !LogWriterChannel.equals(logWriter) && !LogWriterGzip.equals(logWriter)) {
+            throw new IllegalArgumentException("invalid log writer="+logWriter);
+        }
+        this.logWriter = logWriter;
+    }
+
+    public int getLogCompressThreads() {
+        return this.logCompressThreads;
+    }
+
+    /**
+     * Set the number of threads that compress numbers.log with LogWriterGzip, for each log file (each shard has
+     * its own), must be called before start.
+     * @param logCompressThreads default is half the available processors, at least 1.
+     */
+    public void setLogCompressThreads(int logCompressThreads) {
+        if (logCompressThreads < 1) throw new IllegalArgumentException("logCompressThreads must be at least 1");
+        this.logCompressThreads = logCompressThreads;
+    }
+
+    public String getSetType() {
+        return this.setType;
+    }
+
+    /**
+     * Set the type of set used to determine if numbers are unique, must be called before start.  Not used with a 
+     * bitSetFile.  A paged set can only be used by one dedup thread, each shard has its own.
+     * @param setType SetDense (default), or SetPaged for memory that grows with the numbers received.
+     */
+    public void setSetType(String setType) {
+        if (!SetDense.equals(setType) && !SetPaged.equals(setType)) {
+            throw new IllegalArgumentException("invalid set type="+setType);
+        }
+        this.setType = setType;
+    }
+
+    public int getLogSegments() {
+        return this.logSegments;
+    }
+
+    /**
+     * Set the number of threads writing numbers.log as segments, must be called before start.
+     * Segments are listed in numbers.log.manifest, see NumberLogSegments.
+     * @param logSegments 0 to write a single numbers.log (default).
+     */
+    public void setLogSegments(int logSegments) {
+        if (logSegments < 0) throw new IllegalArgumentException("logSegments can not be negative");
+        this.logSegments = logSegments;
+    }
+
+    public long getLogSegmentRecords() {
+        return this.logSegmentRecords;
+    }
+
+    /**
+     * Set the max number of numbers in one log segment, must be called before start.
+     */
+    public void setLogSegmentRecords(long logSegmentRecords) {
+        if (logSegmentRecords < 1) throw new IllegalArgumentException("logSegmentRecords must be at least 1");
+        this.logSegmentRecords = logSegmentRecords;
+    }
+
+    public File[] getLogSegmentDirs() {
+        return this.logSegmentDirs;
+    }
+
+    /**
+     * Set directories for log segments, which are used in turn by the segment writer threads.
+     * @param logSegmentDirs null to use the current directory.
+     */
+    public void setLogSegmentDirs(File[] logSegmentDirs) {
+        this.logSegmentDirs = logSegmentDirs;
+    }
+
+    public CommitPolicy getCommitPolicy() {
+        return this.commitPolicy;
+    }
+
+    /**
+     * Set when numbers.log is forced to disk, must be called before start.
+     * @param commitPolicy default is CommitPolicy.None.
+     */
+    public void setCommitPolicy(CommitPolicy commitPolicy) {
+        if (commitPolicy == null) throw new IllegalArgumentException("commitPolicy can not be null");
+        this.commitPolicy = commitPolicy;
+    }
+
+    /** @return number of times numbers.log has been forced to disk. */
+    public long getCommitCount() {
+        return alCommitCount.get();
+    }
+
+    /** @return total time in nanoseconds taken to force numbers.log to disk. */
+    public long getCommitNanos() {
+        return alCommitNanos.get();
+    }
+
+    /** @return max time in nanoseconds taken by one commit of numbers.log. */
+    public long getCommitMaxNanos() {
+        return alCommitMaxNanos.get();
+    }
+
+    /** @return time in milliseconds taken by stop to drain all queues, -1 if stop has not completed. */
+    public long getShutdownDrainMillis() {
+        return msShutdownDrain;
+    }
+
+    /**
+     * @return false if a write to the log failed, or stop timed out before the log was closed, so unique numbers 
+     * may be missing from the log.
+     */
+    public boolean isLogComplete() {
+        if (!bLogComplete) return false;
+        Shard[] arr = arrShard;
+        if (arr != null) for (Shard shard : arr) if (shard.bWriteFailed) return false;
+        return true;
+    }
+
+    /** @return number of valid numbers read from clients. */
+    public long getReadCount() {
+        return adReadCount.sum();
+    }
+
+    /** @return number of unique numbers received from clients, for all shards. */
+    public long getUniqueCount() {
+        long cnt = 0;
+        Shard[] arr = arrShard;
+        if (arr != null) for (Shard shard : arr) cnt += shard.adNewCount.sum();
+        return cnt;
+    }
+
+    /** @return number of duplicate numbers received from clients, for all shards. */
+    public long getDuplicateCount() {
+        long cnt = 0;
+        Shard[] arr = arrShard;
+        if (arr != null) for (Shard shard : arr) cnt += shard.adDupCount.sum();
+        return cnt;
+    }
+
+    /** @return number of unique numbers written to numbers.log, for all shards. */
+    public long getLoggedCount() {
+        long cnt = 0;
+        Shard[] arr = arrShard;
+        if (arr != null) for (Shard shard : arr) cnt += shard.adLogCount.sum();
+        return cnt;
+    }
+
+    /** @return number of times a reader had to wait for space in an input queue. */
+    public long getInputQueueWaits() {
+        return adInputQueueWait.sum();
+    }
+
+    /** @return number of times reads from clients were paused, because an input queue was above the high watermark. */
+    public long getInputPauses() {
+        return adInputPause.sum();
+    }
+
+    /** @return number of times a dedup thread had to wait for space in the output queue. */
+    public long getOutputQueueWaits() {
+        long cnt = 0;
+        Shard[] arr = arrShard;
+        if (arr != null) for (Shard shard : arr) cnt += shard.adOutputQueueWait.sum();
+        return cnt;
+    }
+
+    /** @return number of numbers in the input queues, and the staging buffers when fair, 0 if not started. */
+    public int getInputQueueDepth() {
+        FairScheduler fair = scheduler;
+        int cnt = (fair != null) ? fair.getStagedCount() : 0;
+        Shard[] arr = arrShard;
+        if (arr != null) {
+            for (Shard shard : arr) {
+                for (IntRingBuffer que : shard.queNumber) cnt += que.size();
+            }
+        }
+        return cnt;
+    }
+
+    /** @return number of numbers waiting to be written to numbers.log, 0 if not started. */
+    public int getOutputQueueDepth() {
+        int cnt = 0;
+        Shard[] arr = arrShard;
+        if (arr != null) for (Shard shard : arr) cnt += shard.queLog.size();
+        return cnt;
+    }
+
+    /** @return latency from reading a batch from a client to flushing or committing it to numbers.log, for sampled batches. */
+    public LatencyHistogram getLatencyHistogram() {
+        return histLatency;
+    }
+
+    /**
+     * Queries of the unique numbers can be run by any thread while numbers are received, without locking and
+     * without pausing the dedup threads (see NumberSetQuery).  A number is seen as soon as a dedup thread has found
+     * it is unique, which can be before it is written to numbers.log.
+     * @return true if the number has been received.
+     * @throws IllegalStateException if the server has not been started.
+     * @throws UnsupportedOperationException if the set does not support queries, all sets in this package do.
+     */
+    public boolean isSeen(int x) {
+        if (x < 0 || x > MaxValue) return false;
+        Shard shard = getQueryShards()[(arrShard.length > 1) ? x / shardRange : 0];
+        return getQuery(shard).isSeen(x - shard.base);
+    }
+
+    /**
+     * @return number of unique numbers received from, to (inclusive), using popcount over the words of the sets.
+     * @see #isSeen
+     */
+    public long countUnique(int from, int to) {
+        long cnt = 0;
+        for (Shard shard : getQueryShards()) {
+            int max = shard.base + getShardRange() - 1;
+            if (to < shard.base || from > max) continue;
+            cnt += getQuery(shard).count(Math.max(from, shard.base) - shard.base, Math.min(to, max) - shard.base);
+        }
+        return cnt;
+    }
+
+    /**
+     * Write the unique numbers received from, to (inclusive) in ascending order, in batches.  The writer is
+     * flushed, not closed.
+     * @return number of numbers written.
+     * @see #isSeen
+     */
+    public long streamUnique(int from, int to, NumberWriter writer) throws IOException {
+        final int[] numbers = new int[NumberParser.BatchSize];
+        long cnt = 0;
+        for (Shard shard : getQueryShards()) {
+            int max = shard.base + getShardRange() - 1;
+            if (to < shard.base || from > max) continue;
+            NumberSetQuery query = getQuery(shard);
+            int last = Math.min(to, max) - shard.base;
+            for (int next = Math.max(from, shard.base) - shard.base; ; ) {
+                int n = query.list(next, last, numbers);
+                if (n == 0) break;
+                next = numbers[n - 1] + 1;
+                if (shard.base != 0) for (int i=0; i<n; i++) numbers[i] += shard.base;
+                writer.write(numbers, n);
+                cnt += n;
+                if (n < numbers.length || next > last) break;
+            }
+        }
+        writer.flush();
+        return cnt;
+    }
+
+    private Shard[] getQueryShards() {
+        Shard[] arr = arrShard;
+        if (arr == null) throw new IllegalStateException("server is not started");
+        return arr;
+    }
+
+    /** @return number of values in the range of each shard, all values with one shard. */
+    private int getShardRange() {
+        return (arrShard.length > 1) ? shardRange : MaxValue + 1;
+    }
+
+    private static NumberSetQuery getQuery(Shard shard) {
+        if (!(shard.set instanceof NumberSetQuery)) {
+            throw new UnsupportedOperationException("set does not support queries, set="+shard.set.getClass().getSimpleName());
+        }
+        return (NumberSetQuery) shard.set;
+    }
+
+    public int getHighWatermark() {
+        return this.highWatermark;
+    }
+
+    public int getLowWatermark() {
+        return this.lowWatermark;
+    }
+
+    /**
+     * Set when reads from clients are paused and resumed, as a percent of the capacity of an input queue, must be 
+     * called before start.  Reads are paused when any input queue is above high, and are resumed when all are at or
+     * below low, so clients are held back by TCP flow control instead of readers waiting for space in a queue.
+     * @param high default is 75, space above it is headroom for reads already reserved.
+     * @param low default is 25, must be less than high.
+     */
+    public void setWatermarks(int high, int low) {
+        if (high < 1 || high > 100 || low < 0 || low >= high) {
+            throw new IllegalArgumentException("invalid watermarks, high="+high+", low="+low);
+        }
+        this.highWatermark = high;
+        this.lowWatermark = low;
+    }
+
+    public int getShards() {
+        return this.shards;
+    }
+
+    /**
+     * Set the number of ranges the key space is split into, must be called before start.
+     * Each shard has its own bitset for its range, input queue, dedup thread, output queue, logger thread and log
+     * file, and shares no state with other shards.  Reader threads send each number to the queue of its shard.
+     * Log files are named numbers.log.shard00, numbers.log.shard01, etc, and are listed in numbers.log.manifest.
+     * @param shards default is 1, for a single pipeline and numbers.log.
+     */
+    public void setShards(int shards) {
+        if (shards < 1 || shards > 100) throw new IllegalArgumentException("shards must be 1 to 100");
+        this.shards = shards;
+    }
+
+    public ServerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    public File getMetricsFile() {
+        return this.metricsFile;
+    }
+
+    /**
+     * Set a file that metrics are written to every 10 seconds, as name=value lines.
+     * @param metricsFile null to not write metrics to a file (default).
+     */
+    public void setMetricsFile(File metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    public boolean isPipelineVirtualThreads() {
+        return this.pipelineVirtualThreads;
+    }
+
+    /**
+     * Set if the pipeline stages run on virtual threads, must be called before start.
+     * Requires JDK 21 or later, otherwise platform threads are used.
+     * @param pipelineVirtualThreads default is false.
+     */
+    public void setPipelineVirtualThreads(boolean pipelineVirtualThreads) {
+        this.pipelineVirtualThreads = pipelineVirtualThreads;
+    }
+
+    public File getLogFile() {
+        return this.logFile;
+    }
+
+    /**
+     * Set the log file for unique numbers, must be called before start.
+     * @param logFile default is numbers.log in the current directory.
+     */
+    public void setLogFile(File logFile) {
+        if (logFile == null) throw new IllegalArgumentException("logFile can not be null");
+        this.logFile = logFile;
+    }
+
+    public File getBitSetFile() {
+        return this.bitSetFile;
+    }
+
+    /**
+     * Set a file to keep the dedup bitset in, as a memory mapped file, must be called before start.
+     * numbers.log is then kept at start, instead of being created new.  If the file has a clean checkpoint that 
+     * matches numbers.log, it is used as is, otherwise it is rebuilt by reading numbers.log.
+     * A mapped bitset can only be used by one dedup thread.
+     * @param bitSetFile null to use a bitset on the heap (default).
+     */
+    public void setBitSetFile(File bitSetFile) {
+        this.bitSetFile = bitSetFile;
+    }
+
+    public int getFairQuantum() {
+        return this.fairQuantum;
+    }
+
+    /**
+     * Set to give each connection a staging buffer, drained in turn into the input queues by a scheduler thread, 
+     * so a fast client can not starve the others (see FairScheduler), must be called before start.  The watermarks
+     * then pause reads from each connection by the size of its own staging buffer.  Not used with acks, a client 
+     * that asks for acks is closed.
+     * @param fairQuantum max numbers taken from one connection in one turn, 0 to add to the input queues directly 
+     * (default).
+     */
+    public void setFairQuantum(int fairQuantum) {
+        if (fairQuantum < 0) throw new IllegalArgumentException("fairQuantum can not be negative");
+        this.fairQuantum = fairQuantum;
+    }
+
+    public boolean isResume() {
+        return this.resume;
+    }
+
+    /**
+     * Set to keep numbers.log (or its segments or shard files) at start, and append to it, must be called before 
+     * start.  The set on the heap is rebuilt from the log before any client is accepted, in parallel (see 
+     * NumberLogReplay), and an incomplete last line is removed.  Not needed with a bitSetFile, which always keeps 
+     * the log.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    public WaitStrategy getDedupWait() {
+        return this.dedupWait;
+    }
+
+    /**
+     * Set how the dedup threads wait when their input queue is empty, must be called before start.
+     * @param dedupWait default is WaitStrategy.Default, spin briefly, yield and then park.
+     */
+    public void setDedupWait(WaitStrategy dedupWait) {
+        if (dedupWait == null) throw new IllegalArgumentException("dedupWait can not be null");
+        this.dedupWait = dedupWait;
+    }
+
+    public boolean isDedupBatch() {
+        return this.dedupBatch;
+    }
+
+    /**
+     * Set for dedup threads to add blocks of numbers partitioned by their high bits (see BatchDedup), so lookups in 
+     * the bitset are grouped by region and their cache misses overlap, must be called before start.  The same 
+     * numbers are unique, but they are written to numbers.log in partition order within each block.
+     * @param dedupBatch default is false.
+     */
+    public void setDedupBatch(boolean dedupBatch) {
+        this.dedupBatch = dedupBatch;
+    }
+
+    public WaitStrategy getLogWait() {
+        return this.logWait;
+    }
+
+    /**
+     * Set how the logger threads wait when their output queue is empty, must be called before start.  With
+     * coalesce the logger also flushes at most once in its time, instead of each time the queue is empty, so there
+     * are fewer small writes at moderate load.  Acks still flush at least every AckFlushNanos.
+     * @param logWait default is WaitStrategy.Default, spin briefly, yield and then park.
+     */
+    public void setLogWait(WaitStrategy logWait) {
+        if (logWait == null) throw new IllegalArgumentException("logWait can not be null");
+        this.logWait = logWait;
+    }
+
+
     /**
      * Start the server controller, which will start the Server Socket Controller, allowing client socket connections.
      * This will start two other threads to perform a "pipeline" processing of client data.
@@ -102,77 +749,128 @@ public class ServerController {
      * 
      * The first thread thread reads from the input queue and determines if the number is unique (using bitset). This 
      * thread also increments counters.  If number is unique, then it will be added to a second queue for output.
+     * If dedupThreads is more than 1, then there is one of these threads and one input queue per dedup thread.
      * 
      * The second thread that is created here will read from the output queue and write the numbers to a single
-     * file named "numbers.log".  This file is created new (and overwritten) each time start is called.
+     * file named "numbers.log".  This file is created new (and overwritten) each time start is called, unless
+     * a bitSetFile has been set or resume is set, in which case it is kept and new numbers are appended.
      *  
      * @throws IOException if output file can not created.
      */
-    public void start() throws IOException {
-        LOG.log(Level.FINE, "start called, isAlreadyStarted="+abStart);
-        if (!abStart.compareAndSet(false, true)) return;
-
-        bsNumber = new BitSet(MaxValue+1);
-        
-        Thread thread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                long msLastError = 0;
-                for ( ;abStart.get(); ) {
-                    try {
-                        String text = queNumber.take();
-                        
-                        int x = (new Integer(text)).intValue();
-                        boolean b = bsNumber.get(x);
-                        if (b) {
-                            aiDupCount.incrementAndGet();
-                        }
-                        else {
-                            aiNewCount.incrementAndGet();
-                            bsNumber.set(x);
-                            if (!queLog.offer(text)) {
-                                aiOutputQueueWait.incrementAndGet();
-                                queLog.put(text);
-                            }
-                        }
-                    }
-                    catch (Exception e) {
-                        long ms = System.currentTimeMillis();
-                        if (ms > msLastError + 5000) {
-                            LOG.log(Level.WARNING, "exception while processing numbers from clients", e);
-                            msLastError = ms;
-                        }
-                    }
+    public void start() throws IOException {
+        LOG.log(Level.FINE, "start called, isAlreadyStarted="+abStart);
+        if (!abStart.compareAndSet(false, true)) return;
+
+        File file = logFile;
+        runVirtualThreads = pipelineVirtualThreads;
+        if (runVirtualThreads && !VirtualThreads.isSupported()) {
+            LOG.log(Level.WARNING, "virtual threads require JDK 21 or later, pipeline will use platform threads");
+            runVirtualThreads = false;
+        }
+        runLogWriter = logWriter;
+        if (LogWriterGzip.equals(runLogWriter) && (bitSetFile != null || resume)) {
+            LOG.log(Level.WARNING, "a gzip log can not be read to rebuild the bitset, log writer will be "+LogWriterChannel);
+            runLogWriter = LogWriterChannel;
+        }
+        if (LogWriterGzip.equals(runLogWriter) && logSegments > 0 && shards == 1) {
+            LOG.log(Level.WARNING, "segments are not compressed, log writer will be "+LogWriterPrint+" for "+logSegments+" segments");
+            runLogWriter = LogWriterPrint;
+        }
+        if (shards > 1) {
+            arrShard = createShards(file);
+        }
+        else {
+            NumberSet set;
+            int threads = dedupThreads;
+            if (bitSetFile != null) {
+                if (threads > 1) {
+                    LOG.log(Level.WARNING, "mapped bitset can only be used by one thread, dedupThreads="+threads+" will be 1");
+                    threads = 1;
                 }
+                set = openMappedBitSet(file);
             }
-        }, "ServerController.ProcessNumbers");
-        // thread.setPriority(Thread.MAX_PRIORITY);
-        thread.setDaemon(true);
-        thread.start();
-        LOG.log(Level.FINE, "started thread "+thread.getName());
+            else if (SetPaged.equals(setType)) {
+                if (threads > 1) {
+                    LOG.log(Level.WARNING, "paged set can only be used by one thread, dedupThreads="+threads+" will be 1");
+                    threads = 1;
+                }
+                set = new PagedBitSet(MaxValue);
+            }
+            else {
+                set = (threads > 1) ? new AtomicBitSet(MaxValue) : new LocalBitSet(MaxValue);
+            }
+            boolean bKeep = (bitSetFile != null) || resume;
+            if (bitSetFile == null && resume) replayLog(file, set, 0);
+            arrShard = new Shard[] { new Shard(0, 0, set, threads, file, createLogWriter(file, bKeep)) };
+        }
+        bInputClosed = false;
+        bLogComplete = true;
+        bInputPaused = false;
+        int capacity = arrShard[0].queNumber[0].capacity();
+        inputHigh = (int) ((long) capacity * highWatermark / 100);
+        inputLow = (int) ((long) capacity * lowWatermark / 100);
+        
+        Thread thread = null;
+        for (Shard shard : arrShard) {
+            for (int t=0; t<shard.queNumber.length; t++) {
+                String name = "ServerController.ProcessNumbers";
+                if (arrShard.length > 1) name += ".shard"+shard.id;
+                if (shard.queNumber.length > 1) name += "."+t;
+                thread = newThread(processNumbers(shard, t), name);
+                // thread.setPriority(Thread.MAX_PRIORITY);
+                thread.start();
+                LOG.log(Level.FINE, "started thread "+thread.getName());
+            }
+        }
+
+        scheduler = null;
+        if (fairQuantum > 0) {
+            scheduler = new FairScheduler(fairQuantum, highWatermark, lowWatermark) {
+                @Override
+                protected boolean offer(int[] numbers, int count, long nsProbe) {
+                    return offerInput(numbers, count, nsProbe);
+                }
+
+                @Override
+                protected boolean isSaturated() {
+                    return isInputBusy();
+                }
+            };
+            thread = newThread(scheduler, "ServerController.Scheduler");
+            thread.start();
+            LOG.log(Level.FINE, "started thread "+thread.getName()+", quantum="+fairQuantum);
+        }
         
         // thread to report every 10 seconds
-        thread = new Thread(new Runnable() {
+        thread = newThread(new Runnable() {
             @Override
             public void run() {
-                int iLastNewCount = 0;
-                int iLastDupCount = 0;
+                long iLastNewCount = 0;
+                long iLastDupCount = 0;
+                long[] lastClientCounts = new long[0];
                 
                 for ( ;abStart.get(); ) {
                     try {
                         Thread.sleep(10 * 1000);
-                        int newCount = aiNewCount.get();
-                        int dupCount = aiDupCount.get();
+                        long newCount = getUniqueCount();
+                        long dupCount = getDuplicateCount();
                         
                         String s = String.format("Received %,d unique numbers, %,d duplicates, Unique total: %,d, total read: %,d", 
-                            (newCount-iLastNewCount), (dupCount-iLastDupCount), aiNewCount.get(), (newCount+dupCount));
-                        
-                        /*
-                        s += ", InputQueWait="+aiInputQueueWait.get();
-                        s += ", OutputQueWait="+aiOutputQueueWait.get();
-                        */
+                            (newCount-iLastNewCount), (dupCount-iLastDupCount), newCount, (newCount+dupCount));
                         
                         System.out.println(s);
+
+                        metrics.update();
+                        LOG.fine("rate read="+metrics.getReadRate()+"/s, dedup="+metrics.getDedupRate()+"/s, log="+metrics.getLogRate()+"/s"
+                            +", latency p50="+metrics.getLatencyP50Micros()+"us, p99="+metrics.getLatencyP99Micros()+"us"
+                            +", max="+metrics.getLatencyMaxMicros()+"us");
+                        long cntCommit = alCommitCount.get();
+                        if (cntCommit > 0) {
+                            LOG.fine("log commits="+cntCommit+", avg commit="+(alCommitNanos.get()/cntCommit/1000)+"us"
+                                +", max commit="+(alCommitMaxNanos.get()/1000)+"us");
+                        }
+                        if (metricsFile != null) metrics.writeTo(metricsFile);
+                        if (scheduler != null) lastClientCounts = reportClients(lastClientCounts);
                         
                         iLastNewCount = newCount;
                         iLastDupCount = dupCount;
@@ -183,69 +881,468 @@ public class ServerController {
                 }
             }
         }, "ServerController.Reporter");
-        thread.setDaemon(true);
         thread.start();
         LOG.log(Level.FINE, "started thread "+thread.getName());
 
         
-        // thread to log new numbers
-        File file = new File("numbers.log");
-        writerLog = new PrintWriter(file);  // uses 8192 buffer by default, does not incude auto flushing on newline
-        
-        countDownLatch = new CountDownLatch(1);
+        // thread to log new numbers, one for each shard
+        countDownLatch = new CountDownLatch(arrShard.length);
         
-        thread = new Thread(new Runnable() {
+        for (Shard shard : arrShard) {
+            String name = (arrShard.length > 1) ? "ServerController.Logger.shard"+shard.id : "ServerController.Logger";
+            thread = newThread(logNumbers(shard), name);
+            thread.start();
+            LOG.log(Level.FINE, "started thread "+thread.getName());
+        }
+
+        metrics.register();
+
+        // start server socket
+        getServerSocketController().start();
+        LOG.log(Level.FINE, "start process completed");
+    }
+
+    
+    /**
+     * Create a daemon thread for a pipeline stage, a virtual thread if set and supported.
+     */
+    private Thread newThread(Runnable runnable, String name) {
+        Thread thread;
+        if (runVirtualThreads) {
+            // virtual threads are always daemon threads
+            thread = VirtualThreads.factory(name).newThread(runnable);
+            thread.setName(name);
+        }
+        else {
+            thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+        }
+        return thread;
+    }
+
+    /**
+     * Create a shard for each range of the key space, each writing its own log file listed in the manifest.
+     * Old shard files listed in the manifest are deleted, unless resuming, when each shard rebuilds its set from
+     * its file and appends to it.
+     */
+    private Shard[] createShards(File file) throws IOException {
+        if (bitSetFile != null || logSegments > 0 || dedupThreads > 1) {
+            LOG.log(Level.WARNING, "shards are not used with persist, segments or dedup threads, these will be ignored");
+        }
+        File manifest = NumberLogSegments.getManifest(file);
+        List<File> listOld = NumberLogSegments.readManifest(manifest);
+        if (resume && !listOld.isEmpty() && listOld.size() != shards) {
+            throw new IOException("can not resume, "+manifest+" lists "+listOld.size()+" shard files, shards="+shards);
+        }
+        for (File old : listOld) {
+            if (!resume && old.exists() && !old.delete()) throw new IOException("can not delete old log file "+old);
+        }
+        shardRange = (int) (((long) MaxValue + shards) / shards);
+        Shard[] arr = new Shard[shards];
+        List<File> listFile = new ArrayList<>();
+        for (int i=0; i<shards; i++) {
+            File fileShard = new File(file.getPath() + String.format(".shard%02d", i));
+            listFile.add(fileShard);
+            NumberSet set = SetPaged.equals(setType) ? new PagedBitSet(shardRange - 1) : new LocalBitSet(shardRange - 1);
+            if (resume) replayLog(fileShard, set, i * shardRange);
+            arr[i] = new Shard(i, i * shardRange, set, 1, fileShard, 
+                createLogWriter(fileShard, resume));
+        }
+        NumberLogSegments.writeManifest(manifest, listFile);
+        LOG.log(Level.FINE, "created "+shards+" shards, range="+shardRange);
+        return arr;
+    }
+
+    /**
+     * Create the writer for numbers.log.
+     * @param append true to keep the existing file, otherwise it is created new.
+     */
+    private NumberWriter createLogWriter(File file, boolean append) throws IOException {
+        if (logSegments > 0 && shards == 1) {
+            return new SegmentedNumberWriter(file, append, requiredDigits, logSegments, logSegmentRecords, logSegmentDirs);
+        }
+        if (LogWriterChannel.equals(runLogWriter)) return new ChannelNumberWriter(file, append, requiredDigits);
+        if (LogWriterGzip.equals(runLogWriter)) return new GzipNumberWriter(file, append, requiredDigits, logCompressThreads);
+        return new PrintNumberWriter(file, append, requiredDigits);
+    }
+
+    /**
+     * Open the mapped bitset, and rebuild it from the log file if it does not have a checkpoint that matches the log.
+     * The bitset is marked dirty before it is used, until it is closed after all numbers are written to the log.
+     */
+    private MappedBitSet openMappedBitSet(File fileLog) throws IOException {
+        MappedBitSet set = new MappedBitSet(bitSetFile, MaxValue);
+        long length = getLogLength(fileLog);
+        if (set.isClean() && set.getCheckpointLogLength() == length) {
+            LOG.log(Level.INFO, "using bitset "+bitSetFile+", checkpoint matches "+fileLog+", length="+length);
+        }
+        else {
+            LOG.log(Level.INFO, "bitset "+bitSetFile+" does not match "+fileLog+", will rebuild it from the log");
+            set.clear();
+            if (logSegments > 0) NumberLogReplay.replaySegments(NumberLogSegments.getManifest(fileLog), set, requiredDigits);
+            else NumberLogReplay.replay(fileLog, set, requiredDigits);
+        }
+        set.markDirty();
+        return set;
+    }
+
+    /**
+     * Rebuild the set from the numbers already in the log (or its segments), for resume.
+     * @param base first number of the range of the set.
+     */
+    private void replayLog(File fileLog, NumberSet set, int base) throws IOException {
+        long ms = System.currentTimeMillis();
+        long count;
+        if (logSegments > 0 && shards == 1) count = NumberLogReplay.replaySegments(NumberLogSegments.getManifest(fileLog), set, requiredDigits);
+        else count = NumberLogReplay.replay(fileLog, set, requiredDigits, base);
+        LOG.log(Level.INFO, "resumed "+fileLog+", "+count+" numbers in "+(System.currentTimeMillis()-ms)+"ms");
+    }
+
+    /**
+     * @return length of the log, or total length of all segments if the log is segmented.
+     */
+    private long getLogLength(File fileLog) throws IOException {
+        if (logSegments > 0) return NumberLogSegments.getLength(NumberLogSegments.getManifest(fileLog));
+        return fileLog.length();
+    }
+
+    /**
+     * Write a checkpoint for a mapped bitset, after the log has been closed, and close it.
+     * @param bComplete true if all numbers in the bitset were written to the log and committed, otherwise the bitset
+     * is left dirty, so it is rebuilt from the log at the next start.
+     */
+    private void closeBitSet(Shard shard, boolean bComplete) throws IOException {
+        if (!(shard.set instanceof MappedBitSet)) return;
+        File fileLog = shard.file;
+        MappedBitSet set = (MappedBitSet) shard.set;
+        if (bComplete) {
+            long length = getLogLength(fileLog);
+            set.checkpoint(length);
+            LOG.log(Level.FINE, "bitset checkpoint written, log length="+length);
+        }
+        else {
+            LOG.log(Level.WARNING, "log may not contain all numbers in bitset, bitset will be rebuilt at next start");
+        }
+        set.close();
+    }
+
+    /**
+     * Runnable for the thread that writes numbers from the output queue to the log file.
+     * This continues after stop, until all dedup threads have finished and the output queue is empty.
+     * The log is forced to disk as set by the commit policy, always for a group of numbers.
+     */
+    private Runnable logNumbers(final Shard shard) {
+        final IntRingBuffer queLog = shard.queLog;
+        final NumberWriter writerLog = shard.writer;
+        // numbers are durable for acks when committed, or when flushed if the policy does not commit while running
+        final boolean bCommitAcks = commitPolicy.isPeriodic();
+        final WaitStrategy wait = logWait;
+        final long nsCoalesce = wait.getCoalesceNanos();
+        return new Runnable() {
+            /** read time of the first sampled batch written since the last flush, recorded when it is flushed */
+            private long nsProbeUnflushed;
+
+            /**
+             * Record the latency of the sampled batch, after the writer was flushed or committed.
+             */
+            private void recordProbe() {
+                if (nsProbeUnflushed == 0) return;
+                histLatency.record(System.nanoTime() - nsProbeUnflushed);
+                nsProbeUnflushed = 0;
+            }
+
             @Override
             public void run() {
                 long msLastError = 0;
-                for ( ;abStart.get(); ) {
+                final int[] numbers = new int[DrainSize];
+                long cntUncommitted = 0;
+                long nsLastCommit = System.nanoTime();
+                long nsLastFlush = nsLastCommit;
+                long cntUnflushed = 0;
+                for (;;) {
                     try {
-                        if (queLog.isEmpty()) writerLog.flush();
-                        String text = queLog.take();
-                        if (text.length() == 0) continue;
-                        writerLog.println(text);
+                        int n = queLog.drain(numbers);
+                        if (n == 0) {
+                            // the latch makes all numbers added by dedup threads visible
+                            if (shard.dedupLatch.getCount() == 0 && queLog.size() == 0) break;
+                            // with coalesce, numbers written since the last flush wait until its time is up
+                            long nsFlushDue = nsLastFlush + nsCoalesce - System.nanoTime();
+                            if (cntUnflushed > 0 && nsFlushDue > 0) {
+                                n = queLog.drain(numbers, nsFlushDue, wait);
+                                if (n == 0) continue;
+                            }
+                        }
+                        if (n == 0) {
+                            writerLog.flush();
+                            recordProbe();
+                            nsLastFlush = System.nanoTime();
+                            cntUnflushed = 0;
+                            if (!bCommitAcks) shard.takeMarks(queLog.getReadSequence());
+                            // when idle, numbers waiting for an ack are committed without waiting for the policy
+                            if (commitPolicy.isDue(cntUncommitted, System.nanoTime() - nsLastCommit)
+                                || (bCommitAcks && aiAckClients.get() > 0 && cntUncommitted > 0)) {
+                                commitLog(writerLog);
+                                cntUncommitted = 0;
+                                nsLastCommit = System.nanoTime();
+                            }
+                            if (bCommitAcks && cntUncommitted == 0) shard.takeMarks(queLog.getReadSequence());
+                            n = queLog.drain(numbers, PollNanos, wait);
+                        }
+                        if (n > 0) {
+                            writerLog.write(numbers, n);
+                            cntUnflushed += n;
+                            shard.adLogCount.add(n);
+                            long nsProbe = queLog.pollProbe();
+                            if (nsProbe != 0 && nsProbeUnflushed == 0) nsProbeUnflushed = nsProbe;
+                            cntUncommitted += n;
+                            if (commitPolicy.isDue(cntUncommitted, System.nanoTime() - nsLastCommit)) {
+                                commitLog(writerLog);
+                                recordProbe();
+                                cntUncommitted = 0;
+                                nsLastCommit = System.nanoTime();
+                                shard.takeMarks(queLog.getReadSequence());
+                            }
+                            else if (!bCommitAcks && aiAckClients.get() > 0 && System.nanoTime() - nsLastFlush >= AckFlushNanos) {
+                                // without commits, acks are after a flush, which is otherwise only done when idle
+                                writerLog.flush();
+                                recordProbe();
+                                nsLastFlush = System.nanoTime();
+                                cntUnflushed = 0;
+                                shard.takeMarks(queLog.getReadSequence());
+                            }
+                        }
                     }
                     catch (Exception e) {
+                        // the batch may not be in the log, though its numbers are in the set
+                        shard.bWriteFailed = true;
                         long ms = System.currentTimeMillis();
-                        if (ms > msLastError + 5000 && abStart.get()) {
+                        if (ms > msLastError + 5000) {
                             LOG.log(Level.WARNING, "exception while writing unique numbers to log", e);
                             msLastError = ms;
                         }
                     }
                 }
                 try {
-                    writerLog.flush();
+                    // a mapped bitset checkpoint must not be ahead of the log on disk
+                    if (cntUncommitted > 0 && (commitPolicy.isOnShutdown() || shard.set instanceof MappedBitSet)) {
+                        commitLog(writerLog);
+                    }
                     writerLog.close();
                 }
                 catch (Exception e) {
+                    shard.bWriteFailed = true;
                     LOG.log(Level.WARNING, "exception while closing log", e);
                 }
+                try {
+                    // only clean when every number in the set was written and committed
+                    closeBitSet(shard, !shard.bWriteFailed);
+                }
+                catch (Exception e) {
+                    LOG.log(Level.WARNING, "exception while closing bitset", e);
+                }
                 finally {
                     countDownLatch.countDown();
                 }
             }
-        }, "ServerController.Logger");
-        thread.setDaemon(true);
-        thread.start();
-        LOG.log(Level.FINE, "started thread "+thread.getName());
+        };
+    }
 
-        // start server socket
-        getServerSocketController().start();
-        LOG.log(Level.FINE, "start process completed");
+    /**
+     * Force numbers.log (or the file of a shard) to disk, and track the time taken.
+     */
+    private void commitLog(NumberWriter writerLog) throws IOException {
+        long ns = System.nanoTime();
+        writerLog.sync();
+        ns = System.nanoTime() - ns;
+        alCommitCount.incrementAndGet();
+        alCommitNanos.addAndGet(ns);
+        for (long max; ns > (max = alCommitMaxNanos.get()); ) {
+            if (alCommitMaxNanos.compareAndSet(max, ns)) break;
+        }
     }
 
-    
+    /**
+     * Runnable for a thread that determines if numbers from the queue are unique, and if so adds them to the output queue.
+     * This continues after stop, until the reader threads have finished and the queue is empty.
+     */
+    private Runnable processNumbers(final Shard shard, final int t) {
+        final IntRingBuffer que = shard.queNumber[t];
+        final NumberSet set = shard.set;
+        final int base = shard.base;
+        final IntRingBuffer queLog = shard.queLog;
+        final WaitStrategy wait = dedupWait;
+        final BatchDedup batch = dedupBatch ? new BatchDedup(set, getShardRange() - 1, DedupBatchSize) : null;
+        return new Runnable() {
+            @Override
+            public void run() {
+                long msLastError = 0;
+                final int[] numbers = new int[(batch != null) ? DedupBatchSize : DrainSize];
+                final int[] unique = new int[numbers.length];
+                for (;;) {
+                    try {
+                        int n = que.drain(numbers, PollNanos, wait);
+                        if (n == 0) {
+                            // continue after stop until all numbers from clients have been processed
+                            if (bInputClosed && que.size() == 0) break;
+                            // a mark that could not be offered after the last batch
+                            shard.offerMark(t);
+                            continue;
+                        }
+                        
+                        int cntNew = 0;
+                        if (batch != null) {
+                            cntNew = batch.add(numbers, n, base, unique);
+                        }
+                        else {
+                            for (int i=0; i<n; i++) {
+                                int x = numbers[i];
+                                if (set.add(x - base)) unique[cntNew++] = x;
+                            }
+                        }
+                        // a sampled batch passes its read time on with its unique numbers
+                        long nsProbe = que.pollProbe();
+                        if (cntNew > 0) {
+                            shard.adNewCount.add(cntNew);
+                            if (queLog.publish(unique, 0, cntNew, nsProbe)) shard.adOutputQueueWait.increment();
+                        }
+                        if (cntNew < n) shard.adDupCount.add(n - cntNew);
+                        shard.offerMark(t);
+                    }
+                    catch (Exception e) {
+                        long ms = System.currentTimeMillis();
+                        if (ms > msLastError + 5000) {
+                            LOG.log(Level.WARNING, "exception while processing numbers from clients", e);
+                            msLastError = ms;
+                        }
+                    }
+                }
+                shard.dedupLatch.countDown();
+            }
+        };
+    }
+
+    /** value of a mark for acks when none is pending */
+    private static final long MarkFree = -1;
+
+    /**
+     * Pipeline for a range of the key space, from base to base + size of the set.
+     * Values are stored in the set as value - base.  Nothing is shared with other shards.
+     */
+    private class Shard {
+        final int id;
+        final int base;
+        final NumberSet set;
+        /** one input queue for each dedup thread */
+        final IntRingBuffer[] queNumber;
+        /** unique numbers to be written by the logger thread of this shard */
+        final IntRingBuffer queLog = new IntRingBuffer(1 << 17);
+        final File file;
+        final NumberWriter writer;
+        /** counted down as each dedup thread finishes, so the logger knows when no more numbers will be added to queLog */
+        final CountDownLatch dedupLatch;
+
+        /**
+         * For acks, for each input queue.  A dedup thread offers a mark when none is pending, the input position it
+         * has processed up to and the position in queLog its unique numbers are before (written first).  When the
+         * logger has made queLog durable past that position, the input position becomes durable and the mark is free.
+         */
+        final AtomicLongArray alaMarkInput;
+        final AtomicLongArray alaMarkLog;
+        final AtomicLongArray alaDurableInput;
+
+        final LongAdder adNewCount = new LongAdder();
+        final LongAdder adDupCount = new LongAdder();
+        final LongAdder adLogCount = new LongAdder();
+        final LongAdder adOutputQueueWait = new LongAdder();
+
+        /**
+         * Set by the logger when a write to the log failed, numbers in the set may then be missing from the log.
+         * No ack is sent past it, and a mapped bitset is left dirty so it is rebuilt from the log.
+         */
+        volatile boolean bWriteFailed;
+
+        Shard(int id, int base, NumberSet set, int dedupThreads, File file, NumberWriter writer) {
+            this.id = id;
+            this.base = base;
+            this.set = set;
+            this.file = file;
+            this.writer = writer;
+            this.queNumber = new IntRingBuffer[dedupThreads];
+            for (int t=0; t<dedupThreads; t++) queNumber[t] = new IntRingBuffer(1 << 17);
+            this.dedupLatch = new CountDownLatch(dedupThreads);
+            this.alaMarkInput = new AtomicLongArray(dedupThreads);
+            this.alaMarkLog = new AtomicLongArray(dedupThreads);
+            this.alaDurableInput = new AtomicLongArray(dedupThreads);
+            for (int t=0; t<dedupThreads; t++) alaMarkInput.set(t, MarkFree);
+        }
+
+        /**
+         * Offer a mark for acks if the last one has been taken, called by the dedup thread of input queue t after it
+         * has published the unique numbers of a batch.
+         */
+        void offerMark(int t) {
+            if (alaMarkInput.get(t) != MarkFree) return;
+            long seqInput = queNumber[t].getReadSequence();
+            if (seqInput == alaDurableInput.get(t)) return;
+            alaMarkLog.set(t, queLog.getWriteSequence());
+            alaMarkInput.set(t, seqInput);
+        }
+
+        /**
+         * Take the marks that are before a durable position in queLog, called by the logger.
+         */
+        void takeMarks(long seqLogDurable) {
+            if (bWriteFailed) return;
+            for (int t=0; t<queNumber.length; t++) {
+                long seqInput = alaMarkInput.get(t);
+                if (seqInput == MarkFree || alaMarkLog.get(t) > seqLogDurable) continue;
+                alaDurableInput.set(t, seqInput);
+                alaMarkInput.set(t, MarkFree);
+            }
+        }
+    }
+
+
     /**
      * Used to 'close' the log file, close client sockets and the server socket.
-     * Note: any numbers in the output queue will not be written to the log file.
+     * All numbers already read from clients are processed, and all unique numbers are written to the log file 
+     * before this returns.  The log is forced to disk unless the commit policy is none.
      */
     public void stop() {
         if (!abStart.compareAndSet(true, false)) return;
+        long ms = System.currentTimeMillis();
         try {
             getServerSocketController().stop();
-            // make sure logger thread cleans up log file.
-            queLog.offer(""); 
-            countDownLatch.await(10, TimeUnit.SECONDS);
+            if (!getServerSocketController().awaitReaders(10 * 1000)) {
+                LOG.log(Level.WARNING, "client reader threads did not finish, numbers they read may not be logged");
+            }
+            int cntQueued = getInputQueueDepth() + getOutputQueueDepth();
+            // staged numbers are passed on to the input queues before the dedup threads are told input is closed
+            if (scheduler != null && !scheduler.close(60 * 1000)) {
+                LOG.log(Level.WARNING, "staged numbers were not passed on within 60 seconds, they may not be logged");
+            }
+            bInputClosed = true;
+
+            // dedup and logger threads drain their queues and then finish
+            boolean bComplete = countDownLatch.await(60, TimeUnit.SECONDS);
+            if (!bComplete) {
+                LOG.log(Level.WARNING, "log was not closed within 60 seconds, queued numbers may not be logged");
+            }
+            for (Shard shard : arrShard) {
+                if (!shard.bWriteFailed) continue;
+                LOG.log(Level.SEVERE, "writes to "+shard.file+" failed, unique numbers were lost from the log");
+                bComplete = false;
+            }
+            bLogComplete = bComplete;
+            msShutdownDrain = System.currentTimeMillis() - ms;
+            long cntCommit = alCommitCount.get();
+            LOG.log(bComplete ? Level.INFO : Level.SEVERE, "shutdown "+(bComplete ? "completed" : "incomplete")+" in "+msShutdownDrain+"ms, queued numbers drained="+cntQueued
+                +", unique total="+getUniqueCount()
+                +", log commits="+cntCommit+(cntCommit > 0 ? ", avg commit="+(alCommitNanos.get()/cntCommit/1000)+"us"
+                +", max commit="+(alCommitMaxNanos.get()/1000)+"us" : ""));
+            logSetMemory();
+            if (metricsFile != null) metrics.writeTo(metricsFile);
+            metrics.unregister();
         }
         catch (Exception e) {
             LOG.log(Level.WARNING, "exception while stopping", e);
@@ -253,6 +1350,24 @@ public class ServerController {
     }
     
     
+
+    /**
+     * Log the memory used by paged sets, which grows with the numbers received.
+     */
+    private void logSetMemory() {
+        long pages = 0;
+        long bitmaps = 0;
+        long bytes = 0;
+        for (Shard shard : arrShard) {
+            if (!(shard.set instanceof PagedBitSet)) return;
+            PagedBitSet set = (PagedBitSet) shard.set;
+            pages += set.getPageCount();
+            bitmaps += set.getBitmapCount();
+            bytes += set.getMemoryBytes();
+        }
+        LOG.log(Level.INFO, "paged set pages="+pages+", bitmap pages="+bitmaps+", memory="+(bytes >> 10)+"KB");
+    }
+
     /**
      * Creates server socket controller that receives client connects and 
      * @return
@@ -267,23 +1382,292 @@ public class ServerController {
             }
             
             @Override
-            protected void onReadValidText(String text) {
-                for (;;) {
-                    try {
-                        if (!queNumber.offer(text)) {
-                            aiInputQueueWait.incrementAndGet();
-                            queNumber.put(text);
-                        }
-                        break;
-                    }
-                    catch (Exception e) {
-                        LOG.log(Level.WARNING, "exception adding to number queue", e);
+            protected boolean isInputPaused(SocketController sc) {
+                FairScheduler fair = scheduler;
+                if (fair != null) return fair.isPaused(sc);
+                return ServerController.this.isInputPaused();
+            }
+
+            @Override
+            protected int reserveInput(SocketController sc, int min, int max) {
+                FairScheduler fair = scheduler;
+                if (fair != null) return fair.reserve(sc, min, max);
+                return ServerController.this.reserveInput(sc, min, max);
+            }
+
+            @Override
+            protected void releaseInput(SocketController sc) {
+                ServerController.this.releaseInput(sc);
+            }
+
+            @Override
+            protected long[] markInput(SocketController sc) {
+                // staged numbers are not yet in the input queues, so their positions can not be marked
+                if (scheduler != null) return null;
+                Shard[] arr = arrShard;
+                long[] mark = new long[arr.length * arr[0].queNumber.length];
+                int i = 0;
+                for (Shard shard : arr) {
+                    for (IntRingBuffer que : shard.queNumber) mark[i++] = que.getWriteSequence();
+                }
+                return mark;
+            }
+
+            @Override
+            protected void onAcksStarted(SocketController sc) {
+                aiAckClients.incrementAndGet();
+            }
+
+            /**
+             * Numbers are durable when committed if the commit policy commits while running (records:n or ms:n).
+             * With commit=none or shutdown they are durable once flushed to the OS, not forced to disk, so an ack
+             * does not survive a crash of the host.
+             */
+            @Override
+            protected boolean isInputDurable(long[] mark) {
+                Shard[] arr = arrShard;
+                int i = 0;
+                for (Shard shard : arr) {
+                    for (int t=0; t<shard.queNumber.length; t++) {
+                        if (shard.alaDurableInput.get(t) < mark[i++]) return false;
                     }
                 }
+                return true;
+            }
+
+            @Override
+            protected void onReadValidNumbers(SocketController sc, int[] numbers, int count) {
+                adReadCount.add(count);
+                // sample latency for at most one batch per ProbeNanos
+                long nsProbe = System.nanoTime();
+                if (nsProbe - nsLastProbe >= ProbeNanos) nsLastProbe = nsProbe;
+                else nsProbe = 0;
+                FairScheduler fair = scheduler;
+                if (fair != null) {
+                    if (fair.publish(sc, numbers, count, nsProbe)) onInputQueueWait();
+                    return;
+                }
+                publishInput(numbers, count, nsProbe, sc.inputQueue);
+            }
+
+            @Override
+            protected void onClosed(SocketController sc) {
+                if (sc.isAcks()) aiAckClients.decrementAndGet();
+                FairScheduler fair = scheduler;
+                if (fair != null) fair.close(sc);
             }
         };
         return controlServerSocket;
     }
+
+    /**
+     * @return true if any input queue is above the low watermark, the input is saturated.
+     */
+    private boolean isInputBusy() {
+        for (Shard shard : arrShard) {
+            for (IntRingBuffer que : shard.queNumber) {
+                if (que.size() > inputLow) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add numbers to the input queues, from a reader, or from the scheduler when fair, in space reserved for them.
+     * @param t input queue the space was reserved in, when there is one shard.
+     */
+    private void publishInput(int[] numbers, int count, long nsProbe, int t) {
+        Shard[] arr = arrShard;
+        if (arr.length > 1) {
+            publishToShards(arr, numbers, count, nsProbe);
+            return;
+        }
+        if (arr[0].queNumber[t].publish(numbers, 0, count, nsProbe)) onInputQueueWait();
+    }
+
+    /**
+     * Reserve space in the input queues for a read, called by a reader before it parses.  With more than one dedup
+     * thread the read is reserved in a single queue, taken in turn, and all of its numbers go to that queue.  With
+     * shards the numbers of a read can go to any shard, so space for all of them is reserved in each.
+     * The space is reserved against the capacity of the queues, the watermarks pause reads before it runs out.
+     * @return numbers reserved, from min to max, or 0 if there is not space for min.
+     */
+    private int reserveInput(SocketController sc, int min, int max) {
+        Shard[] arr = arrShard;
+        int n = 0;
+        if (arr.length > 1) {
+            n = reserveShards(arr, min, max);
+        }
+        else {
+            IntRingBuffer[] queNumber = arr[0].queNumber;
+            int next = (queNumber.length > 1) ? (aiNextQueue.getAndIncrement() & Integer.MAX_VALUE) : 0;
+            for (int i=0; n == 0 && i<queNumber.length; i++) {
+                int t = (next + i) % queNumber.length;
+                n = queNumber[t].reserve(min, max);
+                if (n > 0) sc.inputQueue = t;
+            }
+        }
+        sc.inputReserved = n;
+        return n;
+    }
+
+    /**
+     * Release the space reserved for a read, after it was parsed.
+     */
+    private void releaseInput(SocketController sc) {
+        int n = sc.inputReserved;
+        if (n == 0) return;
+        sc.inputReserved = 0;
+        Shard[] arr = arrShard;
+        if (arr.length > 1) releaseShards(arr, n);
+        else arr[0].queNumber[sc.inputQueue].release(n);
+    }
+
+    /**
+     * Reserve the same space in the input queue of each shard.
+     * @return numbers reserved, from min to max, or 0 if any shard does not have space for min.
+     */
+    private static int reserveShards(Shard[] arr, int min, int max) {
+        int n = max;
+        for (int s=0; s<arr.length; s++) {
+            int r = arr[s].queNumber[0].reserve(min, n);
+            if (r == 0) {
+                releaseShards(arr, s, n);
+                return 0;
+            }
+            // less space in this shard, the extra space in the shards before it is released
+            if (r < n) {
+                for (int i=0; i<s; i++) arr[i].queNumber[0].release(n - r);
+                n = r;
+            }
+        }
+        return n;
+    }
+
+    private static void releaseShards(Shard[] arr, int n) {
+        releaseShards(arr, arr.length, n);
+    }
+
+    private static void releaseShards(Shard[] arr, int shards, int n) {
+        for (int s=0; s<shards; s++) arr[s].queNumber[0].release(n);
+    }
+
+    /**
+     * Add numbers to the input queues if there is space for all of them, without waiting, from the scheduler when
+     * fair, or from a reader whose staged numbers have all been passed on.
+     * @return false if there was not space, nothing was added.
+     */
+    private boolean offerInput(int[] numbers, int count, long nsProbe) {
+        Shard[] arr = arrShard;
+        if (arr.length > 1) {
+            if (reserveShards(arr, count, count) == 0) return false;
+            try {
+                publishToShards(arr, numbers, count, nsProbe);
+            }
+            finally {
+                releaseShards(arr, count);
+            }
+            return true;
+        }
+        IntRingBuffer[] queNumber = arr[0].queNumber;
+        int next = (queNumber.length > 1) ? (aiNextQueue.getAndIncrement() & Integer.MAX_VALUE) : 0;
+        for (int i=0; i<queNumber.length; i++) {
+            IntRingBuffer que = queNumber[(next + i) % queNumber.length];
+            if (que.reserve(count, count) == 0) continue;
+            try {
+                if (que.publish(numbers, 0, count, nsProbe)) onInputQueueWait();
+            }
+            finally {
+                que.release(count);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Count a wait for space in an input queue, which should not happen as readers reserve space before they parse.
+     * Logged at most every 5 seconds.
+     */
+    private void onInputQueueWait() {
+        adInputQueueWait.increment();
+        long ms = System.currentTimeMillis();
+        if (ms > msLastInputWait + 5000) {
+            msLastInputWait = ms;
+            LOG.log(Level.WARNING, "waited for space in an input queue, total waits="+adInputQueueWait.sum());
+        }
+    }
+
+    /**
+     * Log the throughput of each client since the last report, from the numbers the scheduler passed on for it.
+     * @param lastCounts connection ids and counts from the last report.
+     * @return connection ids and counts for the next report.
+     */
+    private long[] reportClients(long[] lastCounts) {
+        long[] counts = scheduler.getPublishedCounts();
+        if (counts.length == 0) return counts;
+        StringBuilder sb = new StringBuilder("client rates (numbers/s):");
+        for (int i=0; i<counts.length; i+=2) {
+            long last = 0;
+            for (int j=0; j<lastCounts.length; j+=2) {
+                if (lastCounts[j] == counts[i]) last = lastCounts[j+1];
+            }
+            sb.append(" id=").append(counts[i]).append(' ').append(String.format("%,d", (counts[i+1] - last) / 10));
+        }
+        LOG.info(sb.toString());
+        return counts;
+    }
+
+    /**
+     * Check the input queues against the watermarks, called by readers before each read.
+     * Paused when any queue is above the high watermark, until all queues are at or below the low watermark.
+     * Readers may race to change the state, which only affects the pause count.
+     * @return true if reads are paused.
+     */
+    private boolean isInputPaused() {
+        Shard[] arr = arrShard;
+        boolean bPaused = bInputPaused;
+        int limit = bPaused ? inputLow : inputHigh;
+        boolean bAbove = false;
+        for (int s=0; !bAbove && s<arr.length; s++) {
+            for (IntRingBuffer que : arr[s].queNumber) {
+                if (que.size() > limit) {
+                    bAbove = true;
+                    break;
+                }
+            }
+        }
+        if (bAbove != bPaused) {
+            bInputPaused = bAbove;
+            if (bAbove) adInputPause.increment();
+        }
+        return bAbove;
+    }
+
+    /**
+     * Split a batch from a reader thread by shard, and add each part to the input queue of its shard.
+     * Each reader thread has its own buffers, so this does not allocate.
+     */
+    private void publishToShards(Shard[] arr, int[] numbers, int count, long nsProbe) {
+        int[][] parts = tlShardBatch.get();
+        if (parts == null || parts[0].length < count) {
+            // last array holds the count of each part
+            parts = new int[arr.length + 1][Math.max(count, NumberParser.BatchSize)];
+            tlShardBatch.set(parts);
+        }
+        final int[] counts = parts[arr.length];
+        final int range = shardRange;
+        for (int i=0; i<count; i++) {
+            int x = numbers[i];
+            int s = x / range;
+            parts[s][counts[s]++] = x;
+        }
+        for (int s=0; s<arr.length; s++) {
+            if (counts[s] == 0) continue;
+            if (arr[s].queNumber[0].publish(parts[s], 0, counts[s], nsProbe)) onInputQueueWait();
+            counts[s] = 0;
+        }
+    }
     
     
 }
@@ -0,0 +1,249 @@
+package com.challenge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of a ServerController, exposed as a JMX MBean and optionally written to a text file.
+ *
+ * Values are read from the counters of the controller when they are requested, so nothing is added to the
+ * pipeline threads.  Rates are calculated by update, which is called by the reporter thread every 10 seconds,
+ * and the text file is written at the same time.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    private static Logger LOG = Logger.getLogger(ServerMetrics.class.getName());
+
+    /** name the MBean is registered with */
+    public static final String ObjectNameText = "com.challenge:type=ServerMetrics";
+
+    private final ServerController sc;
+
+    /** counts at the last update, and the rates calculated from them */
+    private long lastRead;
+    private long lastDedup;
+    private long lastLogged;
+    private long nsLastUpdate = System.nanoTime();
+    private volatile long readRate;
+    private volatile long dedupRate;
+    private volatile long logRate;
+
+    public ServerMetrics(ServerController sc) {
+        this.sc = sc;
+    }
+
+    /**
+     * Register with the platform MBean server, replacing any MBean registered with the same name.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(ObjectNameText);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            LOG.log(Level.FINE, "registered MBean "+name);
+        }
+        catch (Exception e) {
+            LOG.log(Level.WARNING, "exception while registering MBean, metrics will not be available by JMX", e);
+        }
+    }
+
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(ObjectNameText);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        }
+        catch (Exception e) {
+            LOG.log(Level.WARNING, "exception while unregistering MBean", e);
+        }
+    }
+
+    /**
+     * Calculate rates since the last update, must only be called by one thread.
+     */
+    public void update() {
+        long ns = System.nanoTime();
+        long read = sc.getReadCount();
+        long dedup = sc.getUniqueCount() + sc.getDuplicateCount();
+        long logged = sc.getLoggedCount();
+        long elapsed = Math.max(1, ns - nsLastUpdate);
+        readRate = (read - lastRead) * 1000000000L / elapsed;
+        dedupRate = (dedup - lastDedup) * 1000000000L / elapsed;
+        logRate = (logged - lastLogged) * 1000000000L / elapsed;
+        lastRead = read;
+        lastDedup = dedup;
+        lastLogged = logged;
+        nsLastUpdate = ns;
+    }
+
+    /**
+     * Write all metrics to a text file, one name=value per line.
+     * A new file is written and then renamed, so a reader never sees a partial file.
+     */
+    public void writeTo(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write("read_count="+getReadCount()+"\n");
+            writer.write("unique_count="+getUniqueCount()+"\n");
+            writer.write("duplicate_count="+getDuplicateCount()+"\n");
+            writer.write("logged_count="+getLoggedCount()+"\n");
+            writer.write("connection_count="+getConnectionCount()+"\n");
+            writer.write("input_queue_depth="+getInputQueueDepth()+"\n");
+            writer.write("output_queue_depth="+getOutputQueueDepth()+"\n");
+            writer.write("input_queue_waits="+getInputQueueWaits()+"\n");
+            writer.write("input_pauses="+getInputPauses()+"\n");
+            writer.write("backpressure_ms="+getBackpressureMillis()+"\n");
+            writer.write("output_queue_waits="+getOutputQueueWaits()+"\n");
+            writer.write("read_rate="+getReadRate()+"\n");
+            writer.write("dedup_rate="+getDedupRate()+"\n");
+            writer.write("log_rate="+getLogRate()+"\n");
+            writer.write("latency_samples="+getLatencySamples()+"\n");
+            writer.write("latency_mean_us="+getLatencyMeanMicros()+"\n");
+            writer.write("latency_p50_us="+getLatencyP50Micros()+"\n");
+            writer.write("latency_p99_us="+getLatencyP99Micros()+"\n");
+            writer.write("latency_p999_us="+getLatencyP999Micros()+"\n");
+            writer.write("latency_max_us="+getLatencyMaxMicros()+"\n");
+            writer.write("commit_count="+getCommitCount()+"\n");
+            writer.write("commit_mean_us="+getCommitMeanMicros()+"\n");
+            writer.write("commit_max_us="+getCommitMaxMicros()+"\n");
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public long getReadCount() {
+        return sc.getReadCount();
+    }
+
+    @Override
+    public long getUniqueCount() {
+        return sc.getUniqueCount();
+    }
+
+    @Override
+    public long getDuplicateCount() {
+        return sc.getDuplicateCount();
+    }
+
+    @Override
+    public long getLoggedCount() {
+        return sc.getLoggedCount();
+    }
+
+    @Override
+    public int getConnectionCount() {
+        return sc.getServerSocketController().getConnectionCount();
+    }
+
+    @Override
+    public int getInputQueueDepth() {
+        return sc.getInputQueueDepth();
+    }
+
+    @Override
+    public int getOutputQueueDepth() {
+        return sc.getOutputQueueDepth();
+    }
+
+    @Override
+    public long getInputQueueWaits() {
+        return sc.getInputQueueWaits();
+    }
+
+    @Override
+    public long getInputPauses() {
+        return sc.getInputPauses();
+    }
+
+    @Override
+    public long getBackpressureMillis() {
+        return sc.getServerSocketController().getBackpressureNanos() / 1000000;
+    }
+
+    @Override
+    public long getOutputQueueWaits() {
+        return sc.getOutputQueueWaits();
+    }
+
+    @Override
+    public long getReadRate() {
+        return readRate;
+    }
+
+    @Override
+    public long getDedupRate() {
+        return dedupRate;
+    }
+
+    @Override
+    public long getLogRate() {
+        return logRate;
+    }
+
+    @Override
+    public long getLatencySamples() {
+        return sc.getLatencyHistogram().getCount();
+    }
+
+    @Override
+    public long getLatencyMeanMicros() {
+        return sc.getLatencyHistogram().getMeanMicros();
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return sc.getLatencyHistogram().getPercentileMicros(50);
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return sc.getLatencyHistogram().getPercentileMicros(99);
+    }
+
+    @Override
+    public long getLatencyP999Micros() {
+        return sc.getLatencyHistogram().getPercentileMicros(99.9);
+    }
+
+    @Override
+    public long getLatencyMaxMicros() {
+        return sc.getLatencyHistogram().getMaxMicros();
+    }
+
+    @Override
+    public long getCommitCount() {
+        return sc.getCommitCount();
+    }
+
+    @Override
+    public long getCommitMeanMicros() {
+        long cnt = sc.getCommitCount();
+        return (cnt == 0) ? 0 : sc.getCommitNanos() / cnt / 1000;
+    }
+
+    @Override
+    public long getCommitMaxMicros() {
+        return sc.getCommitMaxNanos() / 1000;
+    }
+
+    @Override
+    public boolean isSeen(int x) {
+        return sc.isSeen(x);
+    }
+
+    @Override
+    public long countUnique(int from, int to) {
+        return sc.countUnique(from, to);
+    }
+}
@@ -0,0 +1,79 @@
+package com.challenge;
+
+/**
+ * JMX management interface for ServerMetrics, registered as com.challenge:type=ServerMetrics.
+ * Counts are totals since start, rates are numbers per second over the last 10 second report.
+ */
+public interface ServerMetricsMBean {
+
+    /** @return number of valid numbers read from clients. */
+    long getReadCount();
+
+    /** @return number of unique numbers. */
+    long getUniqueCount();
+
+    /** @return number of duplicate numbers. */
+    long getDuplicateCount();
+
+    /** @return number of unique numbers written to numbers.log. */
+    long getLoggedCount();
+
+    /** @return number of client connections currently open. */
+    int getConnectionCount();
+
+    /** @return number of numbers in the input queues, waiting for the dedup threads. */
+    int getInputQueueDepth();
+
+    /** @return number of numbers in the output queue, waiting to be written to numbers.log. */
+    int getOutputQueueDepth();
+
+    /** @return number of times a reader had to wait for space in an input queue. */
+    long getInputQueueWaits();
+
+    /** @return number of times reads from clients were paused, because an input queue was above the high watermark. */
+    long getInputPauses();
+
+    /** @return total time in milliseconds that reads were paused, added for all connections. */
+    long getBackpressureMillis();
+
+    /** @return number of times a dedup thread had to wait for space in the output queue. */
+    long getOutputQueueWaits();
+
+    long getReadRate();
+
+    long getDedupRate();
+
+    long getLogRate();
+
+    /** @return number of latency samples, from reading a batch from a client to flushing or committing it to numbers.log. */
+    long getLatencySamples();
+
+    long getLatencyMeanMicros();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyP999Micros();
+
+    long getLatencyMaxMicros();
+
+    /** @return number of times numbers.log has been forced to disk. */
+    long getCommitCount();
+
+    long getCommitMeanMicros();
+
+    long getCommitMaxMicros();
+
+    /**
+     * Operation, runs while numbers are received without pausing the dedup threads.
+     * @return true if the number has been received.
+     */
+    boolean isSeen(int x);
+
+    /**
+     * Operation, runs while numbers are received without pausing the dedup threads.
+     * @return number of unique numbers received from, to (inclusive).
+     */
+    long countUnique(int from, int to);
+}
@@ -1,26 +1,41 @@
 package com.challenge;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Controller used to manage client connections using tcp/ip on port 4000.
+ * Controller used to manage client connections using tcp/ip on port 4000, or the port that has been set.
  * 
- * This will allow a max of 5 connections at one time.
- * A new thread will be created to service each connection.
+ * This will allow a max of 5 connections at one time, or the max that has been set.  Connections are admitted
+ * with a compare and set on a counter, and tracked in a concurrent map by id, so there is no lock for adding or
+ * removing a connection.
+ * A new thread will be created to service each connection, or if selector threads are set then
+ * connections are non-blocking and are serviced by a small fixed number of SelectorLoop threads.
+ * With virtual threads set, each connection is serviced by a new virtual thread from an executor, using the
+ * same blocking reads as a platform thread.
  * 
- * Input is expected to be 9 digit string with NL termination.
+ * Input is expected to be 9 digit string with NL termination, or binary frames if the first line is the
+ * FrameParser handshake.
  * If input is not correct, then socket will be closed.  If the client sends
  * the input "terminate", then an internal method will be called and then the socket will be close. 
  * 
- * Each input is verified and then used to call an internal method.
+ * Input is parsed from bytes and valid numbers are used to call an internal method in batches.
+ * While isInputPaused returns true for a connection, it is not read from, so the client is held back by TCP flow
+ * control.
  *
  * This class is abstract, with methods to be implemented for number input and termination.
  *
@@ -34,27 +49,63 @@ public abstract class ServerSocketController {
      */
     private ServerSocket serverSocket;
 
-    /** max number of connections at one time */
+    /**
+     * server socket channel used instead of serverSocket when using selector loops.
+     */
+    private ServerSocketChannel serverChannel;
+
+    /** port for client connections, 0 for any free port */
+    private int port = 4000;
+
+    /** number of selector loops to service connections, 0 will create a thread per connection */
+    private int selectorThreads;
+
+    /** selector loops, each new connection is assigned to the next one */
+    private SelectorLoop[] selectorLoops;
+
+    /** true to service each connection with a virtual thread instead of a platform thread */
+    private boolean virtualThreads;
+
+    /** executor that runs each connection on a new virtual thread, null to create a platform thread */
+    private ExecutorService executorClient;
+    
+    /** default max number of connections at one time */
     public static final int MaxConnections = 5;
+
+    /** max number of connections at one time, can be changed while started */
+    private volatile int maxConnections = MaxConnections;
+
+    /** number of connections admitted and not yet closed, a slot is reserved before a connection is created */
+    private final AtomicInteger aiConnectionCount = new AtomicInteger();
     
     /** number of required digits for client data */
     private final int requiredDigits;
     
-    /** manages active client socket connections */
-    private final ArrayList<SocketController> alClientController = new ArrayList<>();
+    /** manages active client socket connections, by id */
+    private final ConcurrentHashMap<Integer, SocketController> mapClientController = new ConcurrentHashMap<>();
     
     /** flag to know if state is started or stopped */
     private final AtomicBoolean abStart = new AtomicBoolean();
     
-    /** lock used to manage connections */
-    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    /** threads that are reading from a client socket, when using a thread per connection */
+    private final Set<Thread> setReaderThread = ConcurrentHashMap.newKeySet();
     
     /** used to assign sequential id value to each client connection */
-    private int idNext;
+    private final AtomicInteger aiNextId = new AtomicInteger();
     
+    /** time between acks, acks are sent for all connections that asked for them by one thread */
+    private static final long AckMillis = 10;
+
     /** string value that can be used by client to stop the server */
     private static final String TerminateText = "terminate";
 
+    /** backpressure time and number of pauses of connections that have been closed */
+    private final LongAdder adClosedBackpressureNanos = new LongAdder();
+    private final LongAdder adClosedBackpressureCount = new LongAdder();
+
+    /** longest line that can be valid, allowing for CR before NL */
+    private final int maxLineLength;
+
     
     /**
      * Create connection that manages client connections.
@@ -62,10 +113,129 @@ public abstract class ServerSocketController {
      */
     public ServerSocketController(int requiredDigits) {
         this.requiredDigits = requiredDigits;
+        this.maxLineLength = Math.max(requiredDigits, TerminateText.length()) + 1;
         LOG.log(Level.FINE, "requiredDigits="+requiredDigits);
     }
     
 
+    /**
+     * Number of selector loops used to service client connections.
+     * @return 0 if a thread is created per connection.
+     */
+    public int getSelectorThreads() {
+        return this.selectorThreads;
+    }
+
+    /**
+     * Set the number of selector loops used to service client connections, must be called before start.
+     * @param selectorThreads 0 to create a thread per connection (default).
+     */
+    public void setSelectorThreads(int selectorThreads) {
+        if (selectorThreads < 0) throw new IllegalArgumentException("selectorThreads can not be negative");
+        this.selectorThreads = selectorThreads;
+    }
+
+
+    public boolean isVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    /**
+     * Set if each connection is serviced by a virtual thread, must be called before start.
+     * Requires JDK 21 or later, otherwise platform threads are used.  Not used with selector threads.
+     * @param virtualThreads default is false.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * Set the port for client connections, must be called before start.
+     * @param port default is 4000, 0 to use any free port (see getLocalPort).
+     */
+    public void setPort(int port) {
+        if (port < 0 || port > 65535) throw new IllegalArgumentException("invalid port="+port);
+        this.port = port;
+    }
+
+    /**
+     * @return port the server socket is bound to, -1 if not started.
+     */
+    public int getLocalPort() {
+        if (serverChannel != null) return serverChannel.socket().getLocalPort();
+        if (serverSocket != null) return serverSocket.getLocalPort();
+        return -1;
+    }
+
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    /**
+     * Set the max number of connections at one time.  Can be changed while started, a lower max does not
+     * close connections that are already open.
+     * @param maxConnections default is MaxConnections (5).
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) throw new IllegalArgumentException("maxConnections must be at least 1");
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return number of client connections currently open.
+     */
+    public int getConnectionCount() {
+        return aiConnectionCount.get();
+    }
+
+    /**
+     * @return total time in nanoseconds that reads were paused for backpressure, for all connections since start.
+     */
+    public long getBackpressureNanos() {
+        long ns = adClosedBackpressureNanos.sum();
+        for (SocketController sc : mapClientController.values()) ns += sc.getBackpressureNanos();
+        return ns;
+    }
+
+    /**
+     * @return number of times reads were paused for backpressure, for all connections since start.
+     */
+    public long getBackpressureCount() {
+        long cnt = adClosedBackpressureCount.sum();
+        for (SocketController sc : mapClientController.values()) cnt += sc.getBackpressureCount();
+        return cnt;
+    }
+
+    /**
+     * Reserve a slot for a new connection, without a lock.
+     * @return false if the server is stopped or the max number of connections are open.
+     */
+    private boolean tryAdmit() {
+        for (;;) {
+            int cnt = aiConnectionCount.get();
+            if (!abStart.get() || cnt >= maxConnections) return false;
+            if (aiConnectionCount.compareAndSet(cnt, cnt + 1)) return true;
+        }
+    }
+
+    /**
+     * Add an admitted connection to the map.  If stop was called while it was being created, then it is
+     * closed here, as stop may not have seen it.
+     * @return false if the connection was closed.
+     */
+    private boolean register(SocketController sc) {
+        mapClientController.put(sc.getId(), sc);
+        if (abStart.get()) return true;
+        close(sc);
+        return false;
+    }
+
+
     /**
      * Start the server socket using the current thread.
      * @throws IOException
@@ -74,8 +244,25 @@ public abstract class ServerSocketController {
         LOG.log(Level.FINE, "start called, isAlreadyStarted="+abStart);
         if (!abStart.compareAndSet(false, true)) return;
         
-        this.serverSocket = new ServerSocket(4000);
-        LOG.log(Level.FINE, "new server socket on port 4000");
+        if (selectorThreads > 0) {
+            selectorLoops = new SelectorLoop[selectorThreads];
+            for (int i=0; i<selectorThreads; i++) {
+                selectorLoops[i] = new SelectorLoop(i);
+                selectorLoops[i].start();
+            }
+            // accept stays blocking, only client channels use the selectors
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.bind(new InetSocketAddress(port));
+            LOG.log(Level.FINE, "new server socket channel on port "+getLocalPort()+", selectorThreads="+selectorThreads);
+        }
+        else {
+            if (virtualThreads) {
+                if (VirtualThreads.isSupported()) executorClient = VirtualThreads.newExecutor("ClientSocket.");
+                else LOG.log(Level.WARNING, "virtual threads require JDK 21 or later, will use a platform thread per connection");
+            }
+            this.serverSocket = new ServerSocket(port);
+            LOG.log(Level.FINE, "new server socket on port "+getLocalPort()+", virtualThreads="+(executorClient != null));
+        }
 
         Thread thread = new Thread(new Runnable() {
             @Override
@@ -84,8 +271,12 @@ public abstract class ServerSocketController {
                 int cntError = 0;
                 for ( ;abStart.get(); ) {
                     try {
-                        Socket socket = serverSocket.accept();
-                        onNewSocket(socket);
+                        if (serverChannel != null) {
+                            onNewChannel(serverChannel.accept());
+                        }
+                        else {
+                            onNewSocket(serverSocket.accept());
+                        }
                     }
                     catch (Exception e) {
                         cntError++;
@@ -100,6 +291,15 @@ public abstract class ServerSocketController {
         }, "ServerSocketController");
         thread.setDaemon(true);
         thread.start();
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendAcks();
+            }
+        }, "ServerSocketController.Acker");
+        thread.setDaemon(true);
+        thread.start();
         
         LOG.log(Level.FINE, "start completed");
     }
@@ -111,24 +311,71 @@ public abstract class ServerSocketController {
         LOG.log(Level.FINE, "stop called, isAlreadyStarted="+abStart);
         if (!abStart.compareAndSet(true, false)) return;
 
-        try {
-            rwLock.writeLock().lock();
-            this.serverSocket.close();
-            
-            for (SocketController sc : alClientController) {
+        if (this.serverSocket != null) this.serverSocket.close();
+        if (this.serverChannel != null) this.serverChannel.close();
+
+        // a connection added after this is closed by register
+        for (SocketController sc : mapClientController.values()) {
+            close(sc);
+        }
+        if (selectorLoops != null) {
+            for (SelectorLoop loop : selectorLoops) loop.stop();
+        }
+        // running tasks finish on their own, they are waited for by awaitReaders
+        if (executorClient != null) executorClient.shutdown();
+        LOG.log(Level.FINE, "stop completed");
+    }
+
+
+    /**
+     * Send acks every AckMillis to the connections that asked for them, until stopped.  Acks are batched, one
+     * ack covers all numbers that became durable since the last one, so there is no cost for each number.
+     * A connection that can not be written to is closed, its client resends from the last ack it received.
+     */
+    private void sendAcks() {
+        for ( ;abStart.get(); ) {
+            try {
+                Thread.sleep(AckMillis);
+            }
+            catch (InterruptedException e) {
+                // no-op
+            }
+            for (SocketController sc : mapClientController.values()) {
+                if (!sc.isAcks()) continue;
                 try {
-                    sc.stop();
+                    sc.sendAck();
                 }
-                catch (Exception e) {
-                    LOG.log(Level.WARNING, "exception while stopping client socket, will continue to stop", e);
+                catch (IOException e) {
+                    onException(sc, e);
                 }
             }
-            alClientController.clear();
         }
-        finally {
-            rwLock.writeLock().unlock();
+    }
+
+    /**
+     * Wait for all threads that read from client connections to finish, after stop has been called.
+     * A reader thread may still be passing on numbers it read just before its connection was closed.
+     * The calling thread is not waited for, as stop can be called from a reader thread (terminate).
+     * @return true if all reader threads finished before the timeout.
+     */
+    public boolean awaitReaders(long timeoutMillis) throws InterruptedException {
+        ArrayList<Thread> alThread = new ArrayList<>(setReaderThread);
+        if (selectorLoops != null) {
+            for (SelectorLoop loop : selectorLoops) alThread.add(loop.getThread());
         }
-        LOG.log(Level.FINE, "stop completed");
+        final long msEnd = System.currentTimeMillis() + timeoutMillis;
+        // tasks that have not started yet are waited for as well, unless called by a task, which can not finish first
+        if (executorClient != null && !setReaderThread.contains(Thread.currentThread())) {
+            if (!executorClient.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) return false;
+        }
+        for (Thread thread : alThread) {
+            if (thread == null || thread == Thread.currentThread()) continue;
+            long ms = msEnd - System.currentTimeMillis();
+            if (ms <= 0) return false;
+            thread.join(ms);
+            if (thread.isAlive()) return false;
+        }
+        return true;
     }
 
 
@@ -144,88 +391,222 @@ public abstract class ServerSocketController {
         LOG.log(Level.FINE, "new client socket="+socket);
         if (socket == null) return;
         
-        SocketController clientController = null;
-        try {
-            rwLock.writeLock().lock();
-            LOG.fine("isStarted="+abStart.get()+", current connect count="+alClientController.size());
-            boolean bValid = abStart.get() && (alClientController.size() < MaxConnections);
-
-            if (!bValid) {
-                LOG.fine("connection is not allowed, will close the socket");
-                socket.close();
-                return;
+        LOG.fine("isStarted="+abStart.get()+", current connect count="+aiConnectionCount.get());
+        if (!tryAdmit()) {
+            LOG.fine("connection is not allowed, will close the socket");
+            socket.close();
+            return;
+        }
+
+        final int id = aiNextId.getAndIncrement();
+        SocketController clientController = new SocketController(socket, id, requiredDigits, maxLineLength) {
+            @Override
+            protected void onReadNumbers(int[] numbers, int count) {
+                ServerSocketController.this.onReadValidNumbers(this, numbers, count);
             }
-            
-            final int id = idNext++;
-            clientController = new SocketController(socket, id) {
-                @Override
-                protected void onReadLine(String text) {
-                    ServerSocketController.this.onReadLine(this, text);
-                }
 
-                @Override
-                protected void onException(IOException ex) {
-                    ServerSocketController.this.onException(this, ex);
-                }
-            };
+            @Override
+            protected void onReadLine(String text) {
+                ServerSocketController.this.onReadLine(this, text);
+            }
 
-            alClientController.add(clientController);
-        }
-        finally {
-            rwLock.writeLock().unlock();
-        }
+            @Override
+            protected boolean isReadPaused() {
+                return ServerSocketController.this.isInputPaused(this);
+            }
+
+            @Override
+            protected int reserveInput(int min, int max) {
+                return ServerSocketController.this.reserveInput(this, min, max);
+            }
+
+            @Override
+            protected void releaseInput() {
+                ServerSocketController.this.releaseInput(this);
+            }
+
+            @Override
+            protected long[] markInput() {
+                return ServerSocketController.this.markInput(this);
+            }
+
+            @Override
+            protected boolean isInputDurable(long[] mark) {
+                return ServerSocketController.this.isInputDurable(mark);
+            }
+
+            @Override
+            protected void onException(IOException ex) {
+                ServerSocketController.this.onException(this, ex);
+            }
+        };
+
+        if (!register(clientController)) return;
         LOG.fine("client connection is allowed, creating thread to read from it");
 
         
         final SocketController ccx = clientController;
-        Thread thread = new Thread(new Runnable() {
+        Runnable runnable = new Runnable() {
             public void run() {
+                setReaderThread.add(Thread.currentThread());
                 try {
                     ccx.start();
                 }
                 catch (IOException e) {
                     ServerSocketController.this.onException(ccx, e);
                 }
+                finally {
+                    // the read loop also ends at EOF, without END or terminate, the slot must still be released
+                    close(ccx);
+                    setReaderThread.remove(Thread.currentThread());
+                }
             }
-        }, "ClientSocket."+ccx.getId());
+        };
+        if (executorClient != null) {
+            executorClient.execute(runnable);
+            LOG.log(Level.FINE, "client connection completed, virtual thread for id="+ccx.getId());
+            return;
+        }
+        Thread thread = new Thread(runnable, "ClientSocket."+ccx.getId());
+        // added before start, so awaitReaders can not miss it
+        setReaderThread.add(thread);
         thread.start();
         LOG.log(Level.FINE, "client connection completed, new thread="+thread.getName());
     }
 
+    /**
+     * Called when server socket channel receives a new client connection, when using selector loops.
+     * The connection is assigned to a selector loop instead of creating a new thread, otherwise this
+     * is the same as onNewSocket.
+     *
+     * @param channel new client socket channel
+     */
+    protected void onNewChannel(final SocketChannel channel) throws IOException {
+        LOG.log(Level.FINE, "new client channel="+channel);
+        if (channel == null) return;
+
+        LOG.fine("isStarted="+abStart.get()+", current connect count="+aiConnectionCount.get());
+        if (!tryAdmit()) {
+            LOG.fine("connection is not allowed, will close the channel");
+            channel.close();
+            return;
+        }
+
+        final int id = aiNextId.getAndIncrement();
+        SelectorLoop loop = selectorLoops[id % selectorLoops.length];
+        ChannelController clientController = new ChannelController(channel, id, loop, requiredDigits, maxLineLength) {
+            @Override
+            protected void onReadNumbers(int[] numbers, int count) {
+                ServerSocketController.this.onReadValidNumbers(this, numbers, count);
+            }
+
+            @Override
+            protected void onReadLine(String text) {
+                ServerSocketController.this.onReadLine(this, text);
+            }
+
+            @Override
+            protected boolean isReadPaused() {
+                return ServerSocketController.this.isInputPaused(this);
+            }
+
+            @Override
+            protected int reserveInput(int min, int max) {
+                return ServerSocketController.this.reserveInput(this, min, max);
+            }
+
+            @Override
+            protected void releaseInput() {
+                ServerSocketController.this.releaseInput(this);
+            }
+
+            @Override
+            protected long[] markInput() {
+                return ServerSocketController.this.markInput(this);
+            }
+
+            @Override
+            protected boolean isInputDurable(long[] mark) {
+                return ServerSocketController.this.isInputDurable(mark);
+            }
+
+            @Override
+            protected void onException(IOException ex) {
+                ServerSocketController.this.onException(this, ex);
+            }
+        };
+
+        if (!register(clientController)) return;
+
+        try {
+            clientController.start();
+        }
+        catch (IOException e) {
+            onException(clientController, e);
+        }
+        LOG.log(Level.FINE, "client connection completed, id="+clientController.getId());
+    }
+
     /**
      * Close a client connection.  This is called when stop is called or when a client sends invalid data.
+     * Can be called more than once for a connection, its slot is released only by the call that removes it.
      */
     protected void close(SocketController sc) {
         if (sc == null) return;
         LOG.fine("closing client, id="+sc.getId());
         try {
             sc.stop();
-            rwLock.writeLock().lock();
-            boolean b = alClientController.remove(sc);
+        }
+        catch (Exception e) {
+            LOG.log(Level.WARNING, "exception while stopping client socket, id="+sc.getId(), e);
         }
         finally {
-            rwLock.writeLock().unlock();
+            if (mapClientController.remove(sc.getId(), sc)) {
+                aiConnectionCount.decrementAndGet();
+                reportBackpressure(sc);
+                onClosed(sc);
+            }
+        }
+    }
+
+    /**
+     * Add the backpressure time of a closed connection to the totals, and log it if reads were paused.
+     */
+    private void reportBackpressure(SocketController sc) {
+        long ns = sc.getBackpressureNanos();
+        long cnt = sc.getBackpressureCount();
+        adClosedBackpressureNanos.add(ns);
+        adClosedBackpressureCount.add(cnt);
+        if (cnt > 0) {
+            LOG.info("client closed, id="+sc.getId()+", reads paused for backpressure "+cnt+" times, total="
+                +TimeUnit.NANOSECONDS.toMillis(ns)+"ms");
         }
     }
     
 
     /**
-     * Called when new data is read from a client connection.
-     * This will verify the data.  If invalid then the socket will be closed, 
-     * otherwise the data is used for calling onReadValidText(..)
+     * Called when a line that is not a valid number is read from a client connection.
+     * Valid numbers are parsed by the connection and used for calling onReadValidNumbers(..),
+     * any other line will cause the socket to be closed.  If the line is the terminate string
+     * then onTerminateCalled() is called first.  The handshake line for binary frames switches the connection to
+     * frames instead, and the ack handshake line starts acks, if they are before any number.
      * @param cc connection that data is from
      * @param text input data
      */
     protected void onReadLine(SocketController sc, String text) {
         if (sc == null) return;
-        if (!isValidText(text)) {
-            if (TerminateText.equals(text)) onTerminateCalled();
-            else LOG.fine("invalid text, client.id="+sc.getId()+", text="+text);
-            close(sc);
+        if (FrameParser.Handshake.equals(text) && sc.startFrames()) {
+            LOG.fine("client switched to binary frames, id="+sc.getId());
+            return;
         }
-        else {
-            onReadValidText(text);
+        if (SocketController.AckHandshake.equals(text) && sc.startAcks()) {
+            LOG.fine("client will be sent acks, id="+sc.getId());
+            onAcksStarted(sc);
+            return;
         }
+        if (TerminateText.equals(text)) onTerminateCalled();
+        else LOG.fine("invalid text, client.id="+sc.getId()+", text="+text);
+        close(sc);
     }
 
     /**
@@ -239,21 +620,66 @@ public abstract class ServerSocketController {
     }
 
     /**
-     * Used to validate client socket input.
+     * Called by readers before each read from a connection.  While this returns true, the connection is not read
+     * from, readers wait before reading instead of waiting for space after they have read.
+     * @param sc connection that is about to be read from.
+     * @return false, unless overridden to apply backpressure.
      */
-    protected boolean isValidText(String text) {
-        if (text == null) return false;
-        if (text.length() != requiredDigits) return false;
-        for (int i=0; i<requiredDigits; i++) {
-            if (!Character.isDigit(text.charAt(i))) return false;
-        }
+    protected boolean isInputPaused(SocketController sc) {
+        return false;
+    }
+
+    /**
+     * Called by readers to reserve space for the numbers of a read, before it is parsed.  Numbers passed on by 
+     * onReadValidNumbers while the space is reserved must not wait for space.
+     * @param sc connection that is read from.
+     * @return numbers reserved, from min to max, or 0 if there is not space for min, all of max unless overridden.
+     */
+    protected int reserveInput(SocketController sc, int min, int max) {
+        return max;
+    }
+
+    /**
+     * Called by readers after a read was parsed, to release the space reserved by reserveInput.
+     */
+    protected void releaseInput(SocketController sc) {
+    }
+
+    /**
+     * Called by readers for acks, after numbers have been passed on by onReadValidNumbers.
+     * @param sc connection the numbers were read from.
+     * @return positions in the input of the pipeline, all numbers passed on so far are before them, or null if
+     * acks are not supported (default).
+     */
+    protected long[] markInput(SocketController sc) {
+        return null;
+    }
+
+    /**
+     * Called by the reader when a connection accepted the ack handshake, it is sent acks until it is closed 
+     * (onClosed, with isAcks true).
+     */
+    protected void onAcksStarted(SocketController sc) {
+    }
+
+    /**
+     * Called by the acker thread with the positions from markInput.
+     * @return true if all numbers before the positions have been written to the log, or dropped as duplicates.
+     * What written means depends on the server, see ServerController.
+     */
+    protected boolean isInputDurable(long[] mark) {
         return true;
     }
-    
+
+    /**
+     * Called once when a client connection has been closed and removed, its reader may still be finishing a read.
+     */
+    protected void onClosed(SocketController sc) {
+    }
 
     /** called whenever a client connection send the terminate string. */
     protected abstract void onTerminateCalled();
-    /** called whenever a client connection sends valid data. */
-    protected abstract void onReadValidText(String text);
+    /** called whenever a client connection sends valid numbers, the array is reused after this returns. */
+    protected abstract void onReadValidNumbers(SocketController sc, int[] numbers, int count);
 }
 
@@ -2,7 +2,12 @@ package com.challenge;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -10,6 +15,18 @@ import java.util.logging.Logger;
  * Used to manage a single client socket connection.
  * 
  * This is crated by ServerSocketController.
+ * Bytes read from the socket are parsed by a NumberParser, valid numbers are passed on in batches,
+ * any other line is passed on as a String.
+ * If the connection switches to binary frames (see FrameParser), the rest of the input is parsed as frames.
+ *
+ * Before each read, isReadPaused is checked, and while it is true nothing is read from the socket.  Data the
+ * client sends then stays in the socket buffers, so TCP flow control makes the client wait, instead of the
+ * reader waiting for space in a queue.  The time spent paused is tracked for each connection.
+ *
+ * The numbers of each read are reserved first (reserveInput), for the most numbers the bytes can hold, so passing
+ * them on never waits for space.  A blocking reader parks, counted as backpressure, until its read is reserved.
+ *
+ * If the client sends the AckHandshake line first, the connection is sent cumulative acks (see sendAck).
  */
 public abstract class SocketController {
     private static Logger LOG = Logger.getLogger(SocketController.class.getName());
@@ -17,24 +34,235 @@ public abstract class SocketController {
     private final Socket socket;
     private final int id;
     private final AtomicBoolean abStart = new AtomicBoolean(); 
+
+    /** size of the buffer used for reading from the socket */
+    public static final int BufferSize = 64 * 1024;
+
+    /** time to park while reads are paused, before checking again */
+    protected static final long PauseNanos = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /** total time reads were paused for backpressure, and the number of pauses, updated only by the reader */
+    private volatile long nsBackpressure;
+    private volatile long cntBackpressure;
+
+    /** parser for the input from this connection */
+    protected final NumberParser parser;
+
+    /** parser for binary frames, null until the connection switches to frames */
+    private FrameParser frameParser;
+
+    /** number of digits required for valid numbers, which sets the range of numbers in frames */
+    private final int requiredDigits;
+
+    /** valid numbers read from this connection, updated only by the reader */
+    private volatile long cntRead;
+
+    /** numbers reserved for the current read, and the input queue they were reserved in, set by the server */
+    int inputReserved;
+    int inputQueue;
+
+    /** set when the parser stopped at a handshake line that was accepted, so parsing continues */
+    private boolean bHandshake;
+
+    /** line sent by a client, before any number, to be sent acks */
+    public static final String AckHandshake = "ack";
+
+    /** max number of marks kept for acks, when full the newest mark is replaced */
+    private static final int MaxAckMarks = 256;
+
+    /**
+     * Marks of numbers read and not yet acked, oldest first, null unless the client asked for acks.
+     * Added to by the reader, removed by the acker thread, both lock it.
+     */
+    private volatile ArrayDeque<AckMark> dequeAck;
+
+    /** read count of the last mark, used only by the reader */
+    private long cntMarked;
+
+    /** read count in the last ack sent, -1 before the first ack, used only by the acker thread */
+    private long cntAcked = -1;
  
     /**
      * Create a controller that manages a client connection/socket.
      * @param socket actual socket.
      * @param id identifier that can be assigned to this connection. 
+     * @param requiredDigits number of digits required for valid numbers.
+     * @param maxLineLength longest line that can be valid.
      */
-    public SocketController(Socket socket, int id) {
+    public SocketController(Socket socket, int id, int requiredDigits, int maxLineLength) {
         if (socket == null) throw new IllegalArgumentException("socket can not be null");
         this.socket = socket;
         this.id = id;
+        this.requiredDigits = requiredDigits;
+        this.parser = new NumberParser(requiredDigits, maxLineLength) {
+            @Override
+            protected void onNumbers(int[] numbers, int count) {
+                cntRead += count;
+                SocketController.this.onReadNumbers(numbers, count);
+            }
+
+            @Override
+            protected void onLine(String text) {
+                SocketController.this.onReadLine(text);
+            }
+        };
     }
     
     public int getId() {
         return this.id;
     }
+
+    /** @return true if the connection has been started and not yet stopped. */
+    public boolean isStarted() {
+        return abStart.get();
+    }
+
+    /** @return number of valid numbers read from this connection. */
+    public long getReadCount() {
+        return cntRead;
+    }
+
+    /** @return true if the connection has switched to binary frames. */
+    public boolean isFrames() {
+        return frameParser != null;
+    }
+
+    /**
+     * Switch the rest of the input to binary frames, called by the reader when the handshake line is read.
+     * @return false if numbers have already been read as lines, the handshake must be the first line.
+     */
+    public boolean startFrames() {
+        if (frameParser != null || cntRead > 0) return false;
+        bHandshake = true;
+        int maxValue = ((int) Math.pow(10, requiredDigits)) - 1;
+        frameParser = new FrameParser(maxValue) {
+            @Override
+            protected void onNumbers(int[] numbers, int count) {
+                cntRead += count;
+                SocketController.this.onReadNumbers(numbers, count);
+            }
+
+            @Override
+            protected void onLine(String text) {
+                SocketController.this.onReadLine(text);
+            }
+        };
+        return true;
+    }
+
+    /**
+     * Start sending acks to the client, called by the reader when the ack handshake line is read.
+     * @return false if numbers have already been read, or frames have been started, the handshake must be first,
+     * or if acks are not supported.
+     */
+    public boolean startAcks() {
+        if (dequeAck != null || frameParser != null || cntRead > 0 || markInput() == null) return false;
+        bHandshake = true;
+        dequeAck = new ArrayDeque<>();
+        return true;
+    }
+
+    /** @return true if the client asked for acks. */
+    public boolean isAcks() {
+        return dequeAck != null;
+    }
+
+    /** @return read count in the last ack sent, -1 if none has been sent. */
+    public long getAckCount() {
+        return cntAcked;
+    }
+
+    /**
+     * Parse bytes read from the connection, as lines or as frames.  When the line parser stops at a handshake
+     * line that was accepted, the rest of the buffer is parsed as lines, or as frames after the frames handshake.
+     * With acks, a mark is added for the numbers that were read.
+     * @return false if parsing stopped, as the connection will be closed.
+     */
+    protected boolean parse(ByteBuffer buffer) {
+        boolean b = parseInput(buffer);
+        if (dequeAck != null && cntRead > cntMarked) markRead();
+        return b;
+    }
+
+    private boolean parseInput(ByteBuffer buffer) {
+        for (;;) {
+            if (frameParser != null) return frameParser.parse(buffer);
+            if (parser.parse(buffer)) return true;
+            if (!bHandshake) return false;
+            bHandshake = false;
+        }
+    }
+
+    /**
+     * Add a mark for all numbers read so far, with the input positions they were passed on at.
+     */
+    private void markRead() {
+        AckMark mark = new AckMark(cntRead, markInput());
+        final ArrayDeque<AckMark> deque = dequeAck;
+        synchronized (deque) {
+            // a newer mark covers the numbers of the one it replaces, only the acks are less frequent
+            if (deque.size() == MaxAckMarks) deque.pollLast();
+            deque.addLast(mark);
+        }
+        cntMarked = cntRead;
+    }
+
+    /**
+     * Send an ack with the count of numbers read from this connection that are durable, if it is more than the 
+     * last ack, or if no ack has been sent yet.  Called by the acker thread.
+     * An ack is the line "ack n" where n counts from the first number the client sent, so after a reconnect the 
+     * client resends from number n.
+     */
+    void sendAck() throws IOException {
+        final ArrayDeque<AckMark> deque = dequeAck;
+        if (deque == null || !flushAck()) return;
+        long cnt = Math.max(0, cntAcked);
+        synchronized (deque) {
+            for (AckMark mark; (mark = deque.peekFirst()) != null && isInputDurable(mark.input); ) {
+                cnt = mark.count;
+                deque.pollFirst();
+            }
+        }
+        if (cnt == cntAcked) return;
+        writeAck(("ack "+cnt+"\n").getBytes(StandardCharsets.US_ASCII));
+        cntAcked = cnt;
+    }
+
+    /**
+     * Write an ack to the client, called by the acker thread.
+     */
+    protected void writeAck(byte[] bytes) throws IOException {
+        socket.getOutputStream().write(bytes);
+    }
+
+    /**
+     * Finish writing the last ack, for a connection that writes without blocking.
+     * @return true if there is no ack left to write.
+     */
+    protected boolean flushAck() throws IOException {
+        return true;
+    }
+
+    /** @return total time in nanoseconds that reads from this connection were paused for backpressure. */
+    public long getBackpressureNanos() {
+        return nsBackpressure;
+    }
+
+    /** @return number of times reads from this connection were paused for backpressure. */
+    public long getBackpressureCount() {
+        return cntBackpressure;
+    }
+
+    /**
+     * Add a pause to the backpressure time, must only be called by the thread that reads from this connection.
+     */
+    protected void addBackpressure(long ns) {
+        nsBackpressure += ns;
+        cntBackpressure++;
+    }
     
     /**
-     * Reads from the input stream and calls onReadLine or onExcpetion.
+     * Reads from the input stream and calls onReadNumbers, onReadLine or onExcpetion.
      * This expects data to be NL terminated strings.
      * 
      * Note: this does not creat a new thread.  The calling code will need 
@@ -46,14 +274,23 @@ public abstract class SocketController {
         if (!abStart.compareAndSet(false, true)) return;
 
         final InputStream is = socket.getInputStream();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+        final byte[] bytes = new byte[BufferSize];
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
         
         // read input from client
         for (; abStart.get() ;) {
             try {
-                String text = reader.readLine();
-                if (text == null) break;
-                onReadLine(text);
+                if (isReadPaused()) awaitResume();
+                int n = is.read(bytes);
+                if (n < 0) break;
+                awaitReserve(getMaxNumbers(n));
+                try {
+                    buffer.limit(n).position(0);
+                    if (!parse(buffer)) break;
+                }
+                finally {
+                    releaseInput();
+                }
             }
             catch (IOException e) {
                 onException(e);
@@ -61,6 +298,49 @@ public abstract class SocketController {
         }
     }
     
+    /**
+     * Park the reader until reads are no longer paused, or the connection is stopped.
+     */
+    private void awaitResume() {
+        long ns = System.nanoTime();
+        while (abStart.get() && isReadPaused()) {
+            LockSupport.parkNanos(PauseNanos);
+        }
+        addBackpressure(System.nanoTime() - ns);
+    }
+
+    /**
+     * Park the reader until the numbers of a read are reserved.  This does not stop when the connection is stopped,
+     * the bytes were already read, and space is made as the queues are drained.
+     */
+    private void awaitReserve(int count) {
+        if (reserveInput(count, count) > 0) return;
+        long ns = System.nanoTime();
+        while (reserveInput(count, count) == 0) {
+            LockSupport.parkNanos(PauseNanos);
+        }
+        addBackpressure(System.nanoTime() - ns);
+    }
+
+    /**
+     * @return most numbers that can be parsed from a read of this many bytes, including one continued from the
+     * last read.  Before any number is read the input could switch to frames, so 4 bytes for each number.
+     */
+    int getMaxNumbers(int bytes) {
+        return bytes / getMinNumberBytes() + 1;
+    }
+
+    /**
+     * @return most bytes to read for the numbers reserved, the inverse of getMaxNumbers.
+     */
+    int getMaxBytes(int numbers) {
+        return (numbers - 1) * getMinNumberBytes();
+    }
+
+    private int getMinNumberBytes() {
+        return (frameParser != null || cntRead == 0) ? 4 : requiredDigits + 1;
+    }
+
     /**
      * Called to close the socket.
      */
@@ -77,10 +357,62 @@ public abstract class SocketController {
         }
     }
     
+    /**
+     * Called before each read, reads stop while this returns true.
+     * @return false, unless overridden to apply backpressure.
+     */
+    protected boolean isReadPaused() {
+        return false;
+    }
+
+    /**
+     * Reserve space for the numbers of a read before they are parsed, without waiting.
+     * @return numbers reserved, from min to max, or 0 if none, all of max unless overridden.
+     */
+    protected int reserveInput(int min, int max) {
+        return max;
+    }
+
+    /**
+     * Release the space reserved for a read, after it was parsed.
+     */
+    protected void releaseInput() {
+    }
+
+    /**
+     * @return input positions at this time, all numbers passed on so far are before them, or null if acks 
+     * are not supported.
+     */
+    protected long[] markInput() {
+        return null;
+    }
+
+    /**
+     * @return true if all numbers before the input positions have been written to the log.
+     */
+    protected boolean isInputDurable(long[] mark) {
+        return true;
+    }
+
     /** method called if the socket has an exception */
     protected abstract void onException(IOException e);
     
-    /** called when the socket inputstream receives a new String */
+    /** called when the socket inputstream receives valid numbers, the array is reused after this returns */
+    protected abstract void onReadNumbers(int[] numbers, int count);
+
+    /** called when the socket inputstream receives a line that is not a valid number */
     protected abstract void onReadLine(String text);
 
+    /**
+     * Number of numbers read from a connection, and the input positions after they were passed on.
+     */
+    private static class AckMark {
+        final long count;
+        final long[] input;
+
+        AckMark(long count, long[] input) {
+            this.count = count;
+            this.input = input;
+        }
+    }
 }
@@ -1,5 +1,7 @@
 package com.challenge;
 
+import java.io.File;
+import java.util.Properties;
 import java.util.logging.*;
 
 /**
@@ -9,6 +11,29 @@ import java.util.logging.*;
 public class Startup {
     private static Logger LOG = Logger.getLogger(Startup.class.getName());
 
+    /**
+     * Options from the command line, each argument is either a name or name=value.
+     */
+    private final Properties options = new Properties();
+
+    /**
+     * Create startup without any options.
+     */
+    public Startup() {
+    }
+
+    /**
+     * Create startup using command line arguments as options.
+     * @param args arguments in the form name or name=value, a name without a value is set to "true".
+     */
+    public Startup(String[] args) {
+        for (int i=0; args != null && i < args.length; i++) {
+            int ix = args[i].indexOf('=');
+            if (ix < 0) options.setProperty(args[i].toLowerCase(), "true");
+            else options.setProperty(args[i].substring(0, ix).toLowerCase(), args[i].substring(ix+1));
+        }
+    }
+
     /**
      * Start the server controller and allow client connections.
      */
@@ -18,14 +43,101 @@ public class Startup {
             @Override
             public void stop() {
                 super.stop();
-                System.exit(0);
+                // a failed log write is reported by the exit code
+                System.exit(isLogComplete() ? 0 : 1);
             }
         };
+        configure(sc);
         LOG.fine("Starting server controller");
         sc.start();
         LOG.fine("Start completed");
     }
     
+    /**
+     * Apply command line options to the server controller before it is started.
+     *   port=n  - port for client connections (default 4000).
+     *   maxconnections=n - max number of client connections at one time (default 5).
+     *   nio[=n]  - use n selector threads (default 2) for client connections instead of a thread per connection.
+     *   virtual[=all] - use a virtual thread per connection (JDK 21+), all also runs the pipeline on virtual threads.
+     *   watermarks=high,low - percent of input queue capacity to pause reads from clients above, and resume at.
+     *   dedup=n  - use n threads to determine if numbers are unique, sharing a lock-free bitset.
+     *   fair[=n] - stage numbers for each connection, passed on in turn n at a time (default 4096), not with acks.
+     *   dedupbatch - dedup threads add blocks of numbers partitioned by high bits, for fewer cache misses.
+     *   dedupwait=block|park[:us]|yield|spin|coalesce:us - how dedup threads wait for numbers (see WaitStrategy).
+     *   logwait=block|park[:us]|yield|spin|coalesce:us - how logger threads wait, coalesce also spaces flushes.
+     *   set=dense|paged - dedup set, paged allocates memory only for ranges of numbers that are received.
+     *   shards=n - split the key space into n ranges, each with its own bitset, queues, threads and log file.
+     *   log=print|channel|gzip - writer for numbers.log, channel formats into direct buffers and uses FileChannel,
+     *                            gzip compresses blocks in parallel and appends them in order as gzip members.
+     *   compressthreads=n - threads that compress each log with log=gzip (default half the processors).
+     *   segments=n - write numbers.log as segments using n threads, listed in numbers.log.manifest.
+     *   segmentsize=n - max number of numbers in one segment.
+     *   segmentdirs=dir1,dir2 - directories for segments, used in turn by the segment threads.
+     *   commit=none|shutdown|records:n|ms:n - when numbers.log is forced to disk, for a group of numbers.
+     *   persist[=file] - keep the dedup bitset in a memory mapped file (default numbers.bitset), and keep numbers.log.
+     *   resume - keep numbers.log and append to it, the bitset is rebuilt from it in parallel at start.
+     *   metricsfile[=file] - write metrics every 10 seconds to a text file (default metrics.txt), they are also an MBean.
+     */
+    protected void configure(ServerController sc) {
+        String s = options.getProperty("port");
+        if (s != null) sc.getServerSocketController().setPort(Integer.parseInt(s));
+        s = options.getProperty("maxconnections");
+        if (s != null) sc.getServerSocketController().setMaxConnections(Integer.parseInt(s));
+        s = options.getProperty("nio");
+        if (s != null) {
+            int n = "true".equals(s) ? 2 : Integer.parseInt(s);
+            sc.getServerSocketController().setSelectorThreads(n);
+        }
+        s = options.getProperty("virtual");
+        if (s != null) {
+            sc.getServerSocketController().setVirtualThreads(true);
+            sc.setPipelineVirtualThreads("all".equals(s));
+        }
+        s = options.getProperty("watermarks");
+        if (s != null) {
+            String[] as = s.split(",");
+            sc.setWatermarks(Integer.parseInt(as[0].trim()), Integer.parseInt(as[1].trim()));
+        }
+        s = options.getProperty("dedup");
+        if (s != null) sc.setDedupThreads(Integer.parseInt(s));
+        s = options.getProperty("fair");
+        if (s != null) sc.setFairQuantum("true".equals(s) ? FairScheduler.DefaultQuantum : Integer.parseInt(s));
+        s = options.getProperty("dedupbatch");
+        if (s != null) sc.setDedupBatch(!"false".equals(s));
+        s = options.getProperty("dedupwait");
+        if (s != null) sc.setDedupWait(WaitStrategy.parse(s));
+        s = options.getProperty("logwait");
+        if (s != null) sc.setLogWait(WaitStrategy.parse(s));
+        s = options.getProperty("set");
+        if (s != null) sc.setSetType(s);
+        s = options.getProperty("shards");
+        if (s != null) sc.setShards(Integer.parseInt(s));
+        s = options.getProperty("log");
+        if (s != null) sc.setLogWriter(s);
+        s = options.getProperty("compressthreads");
+        if (s != null) sc.setLogCompressThreads(Integer.parseInt(s));
+        s = options.getProperty("segments");
+        if (s != null) sc.setLogSegments(Integer.parseInt(s));
+        s = options.getProperty("segmentsize");
+        if (s != null) sc.setLogSegmentRecords(Long.parseLong(s));
+        s = options.getProperty("segmentdirs");
+        if (s != null) {
+            String[] as = s.split(",");
+            File[] dirs = new File[as.length];
+            for (int i=0; i<as.length; i++) dirs[i] = new File(as[i]);
+            sc.setLogSegmentDirs(dirs);
+        }
+        s = options.getProperty("commit");
+        if (s != null) sc.setCommitPolicy(CommitPolicy.parse(s));
+        s = options.getProperty("persist");
+        if (s != null) sc.setBitSetFile(new File("true".equals(s) ? "numbers.bitset" : s));
+        s = options.getProperty("resume");
+        if (s != null) sc.setResume(!"false".equals(s));
+        s = options.getProperty("metricsfile");
+        if (s != null) sc.setMetricsFile(new File("true".equals(s) ? "metrics.txt" : s));
+        LOG.fine("options="+options);
+    }
+    
     /**
      * Main entry application startup.
      * Note: main thread is not "kept".  This will call start, which will create a new thread.
@@ -45,7 +157,7 @@ public class Startup {
             log.addHandler(ch);
         }
         
-        Startup startup = new Startup();
+        Startup startup = new Startup(args);
         startup.start();
         
         // hold and sleep main thread
@@ -2,8 +2,15 @@ package com.challenge;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -11,23 +18,161 @@ import java.util.logging.Logger;
 
 /**
  * Test client to connect to server and send data.
- * 
+ *
  * Includes options to run many or one test client.
- * 
+ *
+ * Lines are formatted directly into byte blocks, which are written to the socket a whole block at a time, so
+ * that the client is not the bottleneck.  Each connection fills a pool of blocks before the clients start, and
+ * then refills a block after it is sent.  Keys can be uniform, from a hot set shared by all connections, or
+ * sequential, and a ratio of lines can repeat a key the connection sent recently.
+ *
+ * With binary set, the connection sends the FrameParser handshake line and then each block as one frame of 4 byte
+ * numbers, instead of 10 byte lines.
+ *
+ * With ack set, the connection asks for acks, and the pool of blocks is a sliding window: a block is kept until
+ * the server acks all of its numbers, as it would be needed to resend from the last ack after a reconnect, and
+ * the connection waits if the next block to reuse is not acked yet.  At the end it waits for all to be acked.
+ *
+ * Closed loop (default) sends as fast as the server reads.  Open loop (rate) sends each block at a fixed
+ * schedule, regardless of how fast the server reads, and reports how far behind the schedule it fell.
+ *
  * @author vvia
  */
 public class TestClient {
     private static Logger LOG = Logger.getLogger(TestClient.class.getName());
-    
+
+    /** keys spread over all values */
+    public static final String KeysUniform = "uniform";
+    /** keys mostly from a small set shared by all connections */
+    public static final String KeysHot = "hot";
+    /** each connection counts up from its own start value */
+    public static final String KeysSequential = "sequential";
+
+    private static final int MaxValue = 999999999;
+    private static final int LineLength = 10;
+
+    private String host = "localhost";
+    private int port = 4000;
+
+    /** distribution of keys, KeysUniform, KeysHot or KeysSequential */
+    private String keys = KeysUniform;
+
+    /** ratio of lines that repeat a key recently sent by the same connection */
+    private double duplicateRatio;
+
+    /** number of keys in the hot set, and ratio of lines that use it */
+    private int hotSize = 100000;
+    private double hotRatio = 0.9;
+
+    /** total lines per second for all connections in open loop, 0 for closed loop */
+    private long rate;
+
+    /** number of lines in one block, and number of blocks generated for each connection before start */
+    private int blockLines = 4096;
+    private int blockCount = 64;
+
+    /** true to send binary frames instead of lines */
+    private boolean binary;
+
+    /** true to ask for acks, and keep each block until it is acked */
+    private boolean ack;
+
+    /** time connections waited for acks, because all blocks in the window were not acked */
+    private final LongAdder adWindowWaitNanos = new LongAdder();
+
+    /** hot set shared by all connections, created by testMany */
+    private int[] hotKeys;
+
+    /** lines sent by all connections */
+    private final LongAdder adLines = new LongAdder();
+    /** max time a block was sent after its schedule, for open loop */
+    private final AtomicLong alMaxLagNanos = new AtomicLong();
+
     public TestClient() {
-        
+
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @param keys KeysUniform (default), KeysHot or KeysSequential.
+     */
+    public void setKeys(String keys) {
+        if (!KeysUniform.equals(keys) && !KeysHot.equals(keys) && !KeysSequential.equals(keys)) {
+            throw new IllegalArgumentException("invalid keys="+keys);
+        }
+        this.keys = keys;
+    }
+
+    /**
+     * @param duplicateRatio 0 to 1, ratio of lines that repeat a key recently sent by the same connection.
+     */
+    public void setDuplicateRatio(double duplicateRatio) {
+        if (duplicateRatio < 0 || duplicateRatio > 1) throw new IllegalArgumentException("invalid duplicateRatio="+duplicateRatio);
+        this.duplicateRatio = duplicateRatio;
+    }
+
+    public void setHotSize(int hotSize) {
+        if (hotSize < 1) throw new IllegalArgumentException("hotSize must be at least 1");
+        this.hotSize = hotSize;
+    }
+
+    public void setHotRatio(double hotRatio) {
+        if (hotRatio < 0 || hotRatio > 1) throw new IllegalArgumentException("invalid hotRatio="+hotRatio);
+        this.hotRatio = hotRatio;
+    }
+
+    /**
+     * @param rate total lines per second for all connections (open loop), 0 to send as fast as possible (closed loop).
+     */
+    public void setRate(long rate) {
+        if (rate < 0) throw new IllegalArgumentException("rate can not be negative");
+        this.rate = rate;
+    }
+
+    /**
+     * @param binary true to send binary frames (see FrameParser), false to send lines (default).
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * @param ack true to ask for acks, then blockCount blocks is the window of numbers not yet acked.
+     */
+    public void setAck(boolean ack) {
+        this.ack = ack;
+    }
+
+    public void setBlockLines(int blockLines) {
+        if (blockLines < 1 || blockLines > FrameParser.MaxFrameValues) {
+            throw new IllegalArgumentException("blockLines must be 1 to "+FrameParser.MaxFrameValues);
+        }
+        this.blockLines = blockLines;
+    }
+
+    public void setBlockCount(int blockCount) {
+        if (blockCount < 1) throw new IllegalArgumentException("blockCount must be at least 1");
+        this.blockCount = blockCount;
+    }
+
+    /** @return lines sent by all connections. */
+    public long getLinesSent() {
+        return adLines.sum();
     }
-    
+
     public void testMany(final int cnt, final int numberOfSeconds) throws Exception {
-    
+
         final CyclicBarrier barrier = new CyclicBarrier(cnt);
         final CountDownLatch countDownLatch = new CountDownLatch(cnt);
-        
+        createHotKeys();
+
         for (int i=0; i<cnt; i++) {
             final int id = i;
             new Thread(new Runnable() {
@@ -35,9 +180,10 @@ public class TestClient {
                 public void run() {
                     try {
                         LOG.fine(id+" is created");
+                        Connection connection = new Connection(id, cnt);
                         barrier.await();
                         LOG.fine(id+" is starting");
-                        testOne(numberOfSeconds);
+                        connection.send(numberOfSeconds);
                     }
                     catch (Exception e) {
                     }
@@ -48,72 +194,293 @@ public class TestClient {
                 }
             }).start();
         }
-        
+
+        final AtomicBoolean abReport = new AtomicBoolean(true);
+        Thread thread = startReporter(abReport);
+
         LOG.fine("MAIN THREAD waiting on countDownLatch, cnt="+countDownLatch.getCount());
         // countDownLatch.await(numberOfSeconds, TimeUnit.MILLISECONDS);
         countDownLatch.await();
-        
+        abReport.set(false);
+        thread.interrupt();
+
         String s = "MAIN THREAD send terminate message, countDownLatch.cnt="+countDownLatch.getCount();
         LOG.fine(s);
         Thread.sleep(2000);
 
-        Socket socket = new Socket("localhost", 4000);
-        
+        Socket socket = new Socket(host, port);
+
         OutputStream os = socket.getOutputStream();
         PrintWriter pw = new PrintWriter(new OutputStreamWriter(os));
-  
+
         pw.println("terminate");
-        
+
         pw.flush();
         pw.close();
         socket.close();
         LOG.fine("MAIN THREAD is DONE");
-    }    
-    
+    }
+
     public void testOne(int numberOfSeconds) throws Exception {
-        Socket socket;
-        socket = new Socket("localhost", 4000);
-        // socket.setTcpNoDelay(true);
+        createHotKeys();
+        new Connection(0, 1).send(numberOfSeconds);
+    }
 
-        boolean b = socket.isClosed();
+    private void createHotKeys() {
+        if (!KeysHot.equals(keys) || (hotKeys != null && hotKeys.length == hotSize)) return;
+        SplittableRandom random = new SplittableRandom(hotSize);
+        hotKeys = new int[hotSize];
+        for (int i=0; i<hotSize; i++) hotKeys[i] = random.nextInt(MaxValue + 1);
+    }
 
-        OutputStream os = socket.getOutputStream();
-        PrintWriter pw = new PrintWriter(new OutputStreamWriter(os));
+    /**
+     * Start a thread that prints the client throughput every second, until abReport is false.
+     */
+    private Thread startReporter(final AtomicBoolean abReport) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long msStart = System.currentTimeMillis();
+                long msLast = msStart;
+                long cntLast = 0;
+                for ( ;abReport.get(); ) {
+                    try {
+                        Thread.sleep(1000);
+                    }
+                    catch (InterruptedException e) {
+                    }
+                    long ms = System.currentTimeMillis();
+                    long cnt = adLines.sum();
+                    String s = String.format("Sent %,d lines/s, total sent: %,d",
+                        (cnt - cntLast) * 1000 / Math.max(1, ms - msLast), cnt);
+                    if (rate > 0) s += String.format(", max lag: %,dms", TimeUnit.NANOSECONDS.toMillis(alMaxLagNanos.get()));
+                    if (ack) s += String.format(", window wait: %,dms", TimeUnit.NANOSECONDS.toMillis(adWindowWaitNanos.sum()));
+                    if (!abReport.get()) s = String.format("Sent %,d lines in %,dms, avg %,d lines/s", cnt, ms - msStart,
+                        cnt * 1000 / Math.max(1, ms - msStart));
+                    System.out.println(s);
+                    msLast = ms;
+                    cntLast = cnt;
+                }
+            }
+        }, "TestClient.Reporter");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * One client connection, with its own pool of blocks.  Used by one thread.
+     */
+    private class Connection {
+        private final int id;
+        private final SplittableRandom random;
+        private final byte[][] blocks;
+        /** recently sent keys, used for duplicates */
+        private final int[] recent = new int[4096];
+        /** number of keys ever added to recent, a long so it does not wrap on long runs */
+        private long recentCount;
+        private int nextSequential;
+        /** nanoseconds between blocks for open loop */
+        private final long blockNanos;
+        /** count in the last ack from the server, -1 if the connection was closed */
+        private volatile long cntAcked;
 
-        final int max = (int) Math.pow(10, 9);
-        long ms = System.currentTimeMillis();
-        for (int i=0; ; i++) {
-            if ( (System.currentTimeMillis() - ms) > (numberOfSeconds * 1000)) break;
+        Connection(int id, int cnt) {
+            this.id = id;
+            this.random = new SplittableRandom(System.nanoTime() + id);
+            this.nextSequential = (int) ((long) (MaxValue + 1) / cnt * id);
+            this.blockNanos = (rate > 0) ? (long) (1e9 * blockLines * cnt / rate) : 0;
+            this.blocks = new byte[blockCount][binary ? 4 + blockLines * 4 : blockLines * LineLength];
+            for (byte[] block : blocks) fill(block);
+        }
 
-            double d = Math.random() * max;
-            String s = String.format("%09d", (int)d);
-            pw.println(s);
-            if (i % 1000 == 0 && pw.checkError()) { // causes decrease in performance
-                break;   
+        private int nextKey() {
+            if (recentCount > 0 && duplicateRatio > 0 && random.nextDouble() < duplicateRatio) {
+                return recent[random.nextInt((int) Math.min(recentCount, recent.length))];
+            }
+            int x;
+            if (KeysSequential.equals(keys)) {
+                x = nextSequential;
+                nextSequential = (nextSequential == MaxValue) ? 0 : nextSequential + 1;
             }
-            // Thread.sleep(1 * 1000);
+            else if (KeysHot.equals(keys) && random.nextDouble() < hotRatio) {
+                x = hotKeys[random.nextInt(hotKeys.length)];
+            }
+            else {
+                x = random.nextInt(MaxValue + 1);
+            }
+            recent[(int) (recentCount++ & (recent.length - 1))] = x;
+            return x;
+        }
+
+        private void fill(byte[] block) {
+            if (binary) {
+                // count and then each number, big endian
+                putInt(block, 0, blockLines);
+                for (int off=4; off<block.length; off+=4) putInt(block, off, nextKey());
+                return;
+            }
+            for (int off=0; off<block.length; off+=LineLength) {
+                int x = nextKey();
+                for (int i=LineLength-2; i>=0; i--) {
+                    block[off + i] = (byte) ('0' + (x % 10));
+                    x /= 10;
+                }
+                block[off + LineLength - 1] = '\n';
+            }
+        }
+
+        private void putInt(byte[] block, int off, int x) {
+            block[off] = (byte) (x >>> 24);
+            block[off + 1] = (byte) (x >>> 16);
+            block[off + 2] = (byte) (x >>> 8);
+            block[off + 3] = (byte) x;
+        }
+
+        void send(int numberOfSeconds) throws Exception {
+            Socket socket = new Socket(host, port);
+            // socket.setTcpNoDelay(true);
+            OutputStream os = socket.getOutputStream();
+            if (ack) {
+                os.write((SocketController.AckHandshake+"\n").getBytes(StandardCharsets.US_ASCII));
+                readAcks(socket.getInputStream());
+            }
+            if (binary) os.write((FrameParser.Handshake+"\n").getBytes(StandardCharsets.US_ASCII));
+
+            final long nsStart = System.nanoTime();
+            final long nsEnd = nsStart + TimeUnit.SECONDS.toNanos(numberOfSeconds);
+            long k = 0;
+            try {
+                for ( ; ; k++) {
+                    long ns = System.nanoTime();
+                    if (ns - nsEnd > 0) break;
+                    if (blockNanos > 0) {
+                        // open loop, each block has a fixed send time that does not depend on the server
+                        long nsDue = nsStart + k * blockNanos;
+                        if (nsDue - ns > 0) {
+                            LockSupport.parkNanos(nsDue - ns);
+                        }
+                        else {
+                            long lag = ns - nsDue;
+                            for (long max; lag > (max = alMaxLagNanos.get()); ) {
+                                if (alMaxLagNanos.compareAndSet(max, lag)) break;
+                            }
+                        }
+                    }
+                    byte[] block = blocks[(int) (k % blocks.length)];
+                    if (k >= blocks.length) {
+                        // the block is reused after the block it holds has been acked
+                        if (ack && !awaitAck((k - blocks.length + 1) * blockLines, nsEnd)) break;
+                        fill(block);
+                    }
+                    os.write(block);
+                    adLines.add(blockLines);
+                }
+
+                if (ack) {
+                    os.flush();
+                    long cnt = k * blockLines;
+                    if (!awaitAck(cnt, System.nanoTime() + TimeUnit.SECONDS.toNanos(30))) {
+                        LOG.warning(id+" was acked "+cntAcked+" of "+cnt+" numbers");
+                    }
+                }
+                // tcp/ip does not have a real-time way to determine disconnect, so sending invalid data to trigger server side socket close
+                if (binary) {
+                    byte[] end = new byte[4];
+                    putInt(end, 0, FrameParser.EndFrame);
+                    os.write(end);
+                }
+                else {
+                    os.write("END\n".getBytes(StandardCharsets.US_ASCII));
+                }
+                os.flush();
+            }
+            finally {
+                socket.close();
+            }
+            LOG.fine(id+" sent for "+numberOfSeconds+" seconds");
+        }
+
+        /**
+         * Wait until at least cnt numbers are acked.
+         * @return false if the deadline passed or the connection was closed first.
+         */
+        private boolean awaitAck(long cnt, long nsDeadline) {
+            if (cntAcked >= cnt) return true;
+            long ns = System.nanoTime();
+            while (cntAcked >= 0 && cntAcked < cnt && System.nanoTime() - nsDeadline < 0) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+            }
+            adWindowWaitNanos.add(System.nanoTime() - ns);
+            return cntAcked >= cnt;
+        }
+
+        /**
+         * Start a thread that reads "ack n" lines from the server, until the connection is closed.
+         */
+        private void readAcks(final InputStream is) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.US_ASCII));
+                        for (String line; (line = reader.readLine()) != null; ) {
+                            if (line.startsWith("ack ")) cntAcked = Long.parseLong(line.substring(4));
+                        }
+                    }
+                    catch (IOException e) {
+                        // closed
+                    }
+                    cntAcked = -1;
+                }
+            }, "TestClient.Acks."+id);
+            thread.setDaemon(true);
+            thread.start();
         }
-        
-        // tcp/ip does not have a real-time way to determine disconnect, so sending invalid data to trigger server side socket close
-        pw.println("END");  
-        
-        pw.flush();
-        pw.close();
-        socket.close();
     }
-    
+
+    /**
+     * Run clients, options are name=value:
+     *   clients=n (default 7), seconds=n (default 120), host=name, port=n,
+     *   keys=uniform|hot|sequential, dup=ratio, hotsize=n, hotratio=ratio,
+     *   rate=lines per second for all clients (open loop, default 0 is closed loop), block=lines, blocks=n,
+     *   binary=true|false to send binary frames instead of lines, ack=true|false to ask for acks.
+     */
     public static void main(String[] args) throws Exception {
         Logger log = Logger.getLogger("");
         log.setLevel(Level.FINE);
         ConsoleHandler ch = new ConsoleHandler();
         ch.setLevel(Level.FINE);
         log.addHandler(ch);
-        
-        LOG.fine("TestClient is starting, will create 7 clients");
+
+        int clients = 7;
+        int seconds = 120;
         TestClient tc = new TestClient();
-        tc.testMany(7, 120);
+        for (int i=0; args != null && i < args.length; i++) {
+            int ix = args[i].indexOf('=');
+            if (ix < 0) throw new IllegalArgumentException("invalid option="+args[i]);
+            String name = args[i].substring(0, ix).toLowerCase();
+            String value = args[i].substring(ix+1);
+            if ("clients".equals(name)) clients = Integer.parseInt(value);
+            else if ("seconds".equals(name)) seconds = Integer.parseInt(value);
+            else if ("host".equals(name)) tc.setHost(value);
+            else if ("port".equals(name)) tc.setPort(Integer.parseInt(value));
+            else if ("keys".equals(name)) tc.setKeys(value);
+            else if ("dup".equals(name)) tc.setDuplicateRatio(Double.parseDouble(value));
+            else if ("hotsize".equals(name)) tc.setHotSize(Integer.parseInt(value));
+            else if ("hotratio".equals(name)) tc.setHotRatio(Double.parseDouble(value));
+            else if ("rate".equals(name)) tc.setRate(Long.parseLong(value));
+            else if ("block".equals(name)) tc.setBlockLines(Integer.parseInt(value));
+            else if ("blocks".equals(name)) tc.setBlockCount(Integer.parseInt(value));
+            else if ("binary".equals(name)) tc.setBinary(Boolean.parseBoolean(value));
+            else if ("ack".equals(name)) tc.setAck(Boolean.parseBoolean(value));
+            else throw new IllegalArgumentException("unknown option="+name);
+        }
+
+        LOG.fine("TestClient is starting, will create "+clients+" clients");
+        tc.testMany(clients, seconds);
         // tc.testOne();
         LOG.fine("TestClient is DONE");
     }
-    
+
 }
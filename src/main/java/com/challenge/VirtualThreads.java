@@ -0,0 +1,87 @@
+package com.challenge;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates virtual threads, and executors that run each task on a new virtual thread, when the JDK has them (21+).
+ *
+ * The build targets an older release, so the JDK methods are found by reflection when the class is loaded.
+ * Callers check isSupported and fall back to platform threads.
+ */
+public class VirtualThreads {
+    private static Logger LOG = Logger.getLogger(VirtualThreads.class.getName());
+
+    /** Thread.ofVirtual(), Thread.Builder.name(String, long), Thread.Builder.factory() */
+    private static final Method OfVirtual;
+    private static final Method BuilderName;
+    private static final Method BuilderFactory;
+    /** Executors.newThreadPerTaskExecutor(ThreadFactory) */
+    private static final Method NewThreadPerTaskExecutor;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        Method newExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            builderName = builder.getMethod("name", String.class, long.class);
+            builderFactory = builder.getMethod("factory");
+            newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        }
+        catch (Exception e) {
+            LOG.log(Level.FINE, "virtual threads are not supported by this JDK, version="+System.getProperty("java.version"));
+            ofVirtual = null;
+        }
+        OfVirtual = ofVirtual;
+        BuilderName = builderName;
+        BuilderFactory = builderFactory;
+        NewThreadPerTaskExecutor = newExecutor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /** @return true if this JDK supports virtual threads. */
+    public static boolean isSupported() {
+        return OfVirtual != null;
+    }
+
+    /**
+     * @param prefix threads are named prefix0, prefix1, etc.
+     * @return factory that creates unstarted virtual threads.
+     * @throws UnsupportedOperationException if virtual threads are not supported.
+     */
+    public static ThreadFactory factory(String prefix) {
+        if (!isSupported()) throw new UnsupportedOperationException("virtual threads require JDK 21 or later");
+        try {
+            Object builder = OfVirtual.invoke(null);
+            builder = BuilderName.invoke(builder, prefix, 0L);
+            return (ThreadFactory) BuilderFactory.invoke(builder);
+        }
+        catch (Exception e) {
+            throw new UnsupportedOperationException("can not create virtual thread factory", e);
+        }
+    }
+
+    /**
+     * @param prefix threads are named prefix0, prefix1, etc.
+     * @return executor that runs each task on a new virtual thread.
+     * @throws UnsupportedOperationException if virtual threads are not supported.
+     */
+    public static ExecutorService newExecutor(String prefix) {
+        ThreadFactory factory = factory(prefix);
+        try {
+            return (ExecutorService) NewThreadPerTaskExecutor.invoke(null, factory);
+        }
+        catch (Exception e) {
+            throw new UnsupportedOperationException("can not create virtual thread executor", e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.challenge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a pipeline thread waits when its queue (IntRingBuffer) is empty, set for each stage, trading CPU for latency.
+ *
+ *   block       - park until a producer signals that values were added, no CPU while idle, a wake up costs a few
+ *                 microseconds.
+ *   park        - spin briefly, yield, and then park 50 microseconds between checks (default).
+ *   park:n      - the same, parking n microseconds between checks.
+ *   yield       - spin briefly, and then yield between checks, never parks.  Uses a core while idle unless other
+ *                 threads are waiting for it.
+ *   spin        - busy spin, uses a whole core while idle, for the lowest latency on a dedicated host.
+ *   coalesce:n  - park n microseconds between checks without spinning, so values are taken in larger batches.
+ *                 The logger then flushes at most every n microseconds, instead of each time its queue is empty.
+ */
+public class WaitStrategy {
+
+    public static final String TypeBlock = "block";
+    public static final String TypePark = "park";
+    public static final String TypeYield = "yield";
+    public static final String TypeSpin = "spin";
+    public static final String TypeCoalesce = "coalesce";
+
+    /** number of times to spin, and then yield, before parking */
+    private static final int SpinTries = 100;
+    private static final int YieldTries = 10;
+    private static final long DefaultParkMicros = 50;
+
+    public static final WaitStrategy Default = new WaitStrategy(TypePark, DefaultParkMicros);
+
+    private final String type;
+    private final long value;
+    private final long nanos;
+
+    private WaitStrategy(String type, long value) {
+        this.type = type;
+        this.value = value;
+        this.nanos = TimeUnit.MICROSECONDS.toNanos(value);
+    }
+
+    /**
+     * Create a strategy from text, for example "spin" or "coalesce:500".
+     */
+    public static WaitStrategy parse(String text) {
+        if (text == null || TypePark.equals(text)) return Default;
+        if (TypeBlock.equals(text) || TypeYield.equals(text) || TypeSpin.equals(text)) return new WaitStrategy(text, 0);
+        int ix = text.indexOf(':');
+        if (ix > 0) {
+            String type = text.substring(0, ix);
+            long value = Long.parseLong(text.substring(ix+1));
+            if (value > 0 && (TypePark.equals(type) || TypeCoalesce.equals(type))) return new WaitStrategy(type, value);
+        }
+        throw new IllegalArgumentException("invalid wait strategy="+text);
+    }
+
+    /**
+     * @return true if the consumer parks until a producer signals it, see IntRingBuffer.
+     */
+    public boolean isBlocking() {
+        return TypeBlock.equals(type);
+    }
+
+    /**
+     * @return min time between flushes of the log when its queue is empty, 0 to flush each time it is empty.
+     */
+    public long getCoalesceNanos() {
+        return TypeCoalesce.equals(type) ? nanos : 0;
+    }
+
+    /**
+     * Wait once, called each time a queue is found empty, not used for block.
+     * @param tries number of times the queue has been found empty since it last had values, from 0.
+     */
+    public void idle(int tries) {
+        if (TypeSpin.equals(type)) {
+            Thread.onSpinWait();
+        }
+        else if (TypeCoalesce.equals(type)) {
+            LockSupport.parkNanos(nanos);
+        }
+        else if (tries < SpinTries) {
+            Thread.onSpinWait();
+        }
+        else if (TypeYield.equals(type) || tries < SpinTries + YieldTries) {
+            Thread.yield();
+        }
+        else {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (value > 0) ? type+":"+value : type;
+    }
+}
@@ -0,0 +1,78 @@
+package com.challenge;
+
+/**
+ * NumberSet of bits in 64 bit words, with queries (see NumberSetQuery) that use popcount over the words.
+ *
+ * Subclasses store the words, and must write them with at least release ordering, so a query that reads a word
+ * with getWordAcquire sees a bit only after the number is fully added.
+ */
+public abstract class WordBitSet implements NumberSet, NumberSetQuery {
+
+    /** largest number in the set */
+    protected final int maxValue;
+
+    protected WordBitSet(int maxValue) {
+        if (maxValue < 0) throw new IllegalArgumentException("maxValue can not be negative");
+        this.maxValue = maxValue;
+    }
+
+    public int getMaxValue() {
+        return this.maxValue;
+    }
+
+    /**
+     * Add the number with an atomic update of its word, can be called by many threads at the same time, for example
+     * to rebuild the set in parallel (see NumberLogReplay), but not at the same time as add.
+     * @return true if the number was not already in the set.
+     */
+    public abstract boolean addShared(int x);
+
+    /**
+     * @return word ix, read with acquire ordering, can be called by any thread.
+     */
+    protected abstract long getWordAcquire(int ix);
+
+    @Override
+    public boolean isSeen(int x) {
+        if (x < 0 || x > maxValue) return false;
+        return (getWordAcquire(x >>> 6) & (1L << x)) != 0;
+    }
+
+    @Override
+    public long count(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(maxValue, to);
+        if (to < from) return 0;
+        final int ixFrom = from >>> 6;
+        final int ixTo = to >>> 6;
+        // masks for the bits of the first and last word that are in the range, shifts use the low 6 bits
+        final long maskFrom = -1L << from;
+        final long maskTo = -1L >>> (63 - (to & 63));
+        if (ixFrom == ixTo) return Long.bitCount(getWordAcquire(ixFrom) & maskFrom & maskTo);
+        long cnt = Long.bitCount(getWordAcquire(ixFrom) & maskFrom);
+        for (int ix=ixFrom+1; ix<ixTo; ix++) {
+            cnt += Long.bitCount(getWordAcquire(ix));
+        }
+        return cnt + Long.bitCount(getWordAcquire(ixTo) & maskTo);
+    }
+
+    @Override
+    public int list(int from, int to, int[] numbers) {
+        from = Math.max(0, from);
+        to = Math.min(maxValue, to);
+        int cnt = 0;
+        if (to < from) return 0;
+        final int ixTo = to >>> 6;
+        long word = getWordAcquire(from >>> 6) & (-1L << from);
+        for (int ix=from>>>6; ; ) {
+            if (ix == ixTo) word &= -1L >>> (63 - (to & 63));
+            // the rest of the word is left for the next call when the array is full
+            while (word != 0 && cnt < numbers.length) {
+                numbers[cnt++] = (ix << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+            if (cnt == numbers.length || ix == ixTo) return cnt;
+            word = getWordAcquire(++ix);
+        }
+    }
+}